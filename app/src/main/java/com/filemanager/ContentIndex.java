@@ -0,0 +1,766 @@
+package com.filemanager;
+
+import android.content.Context;
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Full-text index over the text and code files below the storage roots, for
+// searching inside them. Files are read through a memory map and split into
+// words without building Strings; each word is kept as a 64-bit hash, and a
+// PostingTable maps every hash to the files containing it. A query
+// intersects the lists of its words, then reads only the candidate files to
+// confirm the match and cut the matching lines as snippets. Refreshes stat
+// every file and re-read only those whose size or mtime changed.
+// Files keep no word lists of their own: a changed or deleted file's id is
+// retired and its postings are purged from the table in one pass, and the
+// table is what gets saved. MAX_POSTINGS caps the heap the index can take.
+public class ContentIndex {
+    
+    private static final String TAG = "ContentIndex";
+    private static final String INDEX_FILE = "file_contents.idx";
+    private static final int VERSION = 2;
+    
+    // Bigger files are left out; they are rarely notes or source
+    private static final long MAX_FILE_SIZE = 8L * 1024 * 1024;
+    // A NUL byte in here marks the file as binary (office formats, UTF-16, ...)
+    private static final int BINARY_PROBE_BYTES = 8192;
+    // Word length in bytes; longer runs are hashes and base64, not words
+    private static final int MIN_WORD = 2;
+    private static final int MAX_WORD = 64;
+    // Words past this are ignored, so the match bitmask fits a long
+    private static final int MAX_QUERY_WORDS = 64;
+    private static final int MAX_SNIPPETS = 3;
+    private static final int MAX_SNIPPET_CHARS = 160;
+    // (word, file) pairs held in the table, 4 bytes each plus list slack:
+    // about 16-32 MB. New files found past it are left out of the index.
+    private static final long MAX_POSTINGS = 4_000_000;
+    // Retired postings are purged during a scan once they reach this many
+    private static final long MAX_STALE_POSTINGS = MAX_POSTINGS / 8;
+    
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long[] NO_WORDS = new long[0];
+    
+    private static ContentIndex instance;
+    
+    public interface Listener {
+        // Runs on a pool thread once the walk finished or was cancelled
+        void onComplete(Scan scan);
+    }
+    
+    private static class Doc {
+        final String path;
+        final long size;
+        final long lastModified;
+        final int wordCount; // Its postings in the table; 0 for binary files
+        int id;
+        volatile int seenBy; // Epoch of the last scan that found the file
+        
+        Doc(String path, long size, long lastModified, int wordCount) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.wordCount = wordCount;
+        }
+    }
+    
+    public static class Scan {
+        private final List<String> roots;
+        private final int epoch;
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger indexed = new AtomicInteger();
+        private final AtomicInteger unchanged = new AtomicInteger();
+        private final AtomicInteger binary = new AtomicInteger();
+        private final AtomicInteger removed = new AtomicInteger();
+        private final AtomicInteger overBudget = new AtomicInteger();
+        private final AtomicInteger pendingRoots;
+        private volatile boolean cancelled;
+        private volatile long elapsedNanos;
+        
+        Scan(List<String> roots, int epoch) {
+            this.roots = roots;
+            this.epoch = epoch;
+            this.pendingRoots = new AtomicInteger(roots.size());
+        }
+        
+        public void cancel() { cancelled = true; }
+        public boolean isCancelled() { return cancelled; }
+        public int getIndexedFiles() { return indexed.get(); }
+        public int getUnchangedFiles() { return unchanged.get(); }
+        public int getOverBudgetFiles() { return overBudget.get(); }
+        public long getElapsedNanos() { return elapsedNanos; }
+        
+        @Override
+        public String toString() {
+            return "Scan{" +
+                    "roots=" + roots +
+                    ", indexed=" + indexed +
+                    ", unchanged=" + unchanged +
+                    ", binary=" + binary +
+                    ", removed=" + removed +
+                    ", overBudget=" + overBudget +
+                    ", elapsedMs=" + elapsedNanos / 1_000_000 +
+                    ", cancelled=" + cancelled +
+                    '}';
+        }
+    }
+    
+    public static class Snippet {
+        private final int lineNumber;
+        private final String text;
+        
+        Snippet(int lineNumber, String text) {
+            this.lineNumber = lineNumber;
+            this.text = text;
+        }
+        
+        // 1-based
+        public int getLineNumber() { return lineNumber; }
+        public String getText() { return text; }
+    }
+    
+    public static class Hit {
+        private final FileItem item;
+        private final List<Snippet> snippets;
+        
+        Hit(FileItem item, List<Snippet> snippets) {
+            this.item = item;
+            this.snippets = snippets;
+        }
+        
+        public FileItem getItem() { return item; }
+        public List<Snippet> getSnippets() { return snippets; }
+    }
+    
+    public static class Result {
+        private final String query;
+        private final List<Hit> hits;
+        private final int candidateFiles;
+        private final long lookupNanos;
+        private final long elapsedNanos;
+        
+        Result(String query, List<Hit> hits, int candidateFiles, long lookupNanos, long elapsedNanos) {
+            this.query = query;
+            this.hits = hits;
+            this.candidateFiles = candidateFiles;
+            this.lookupNanos = lookupNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        public String getQuery() { return query; }
+        public List<Hit> getHits() { return hits; }
+        public int getCandidateFiles() { return candidateFiles; }
+        // Time spent in the index, before any candidate file is read
+        public long getLookupNanos() { return lookupNanos; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "query='" + query + '\'' +
+                    ", hits=" + hits.size() +
+                    ", candidates=" + candidateFiles +
+                    ", lookupUs=" + lookupNanos / 1000 +
+                    ", elapsedMs=" + elapsedNanos / 1_000_000 +
+                    '}';
+        }
+    }
+    
+    private final File indexFile;
+    // Guards everything below up to words; queries share the read lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Doc> docs = new HashMap<>();
+    // Null for free and retired ids
+    private final List<Doc> byId = new ArrayList<>();
+    private final List<Integer> freeIds = new ArrayList<>();
+    // Ids whose postings are still in the table; reused once purged
+    private final BitSet retiredIds = new BitSet();
+    private long retiredPostings;
+    private volatile long livePostings;
+    private final PostingTable words = new PostingTable();
+    private final AtomicInteger epochs = new AtomicInteger();
+    private boolean loaded;
+    private volatile boolean ready;
+    private volatile Scan currentScan;
+    
+    public static synchronized ContentIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new ContentIndex(new File(context.getFilesDir(), INDEX_FILE));
+        }
+        return instance;
+    }
+    
+    ContentIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+    
+    // Which files get indexed: documents and code by extension. Binary
+    // documents (doc, xlsx, ...) are caught by the NUL probe when read.
+    static boolean isIndexable(String name) {
+        FileCategory category = FileTypeDetector.getCategory(false, FileUtils.getFileExtension(name));
+        return category == FileCategory.DOCUMENT || category == FileCategory.CODE;
+    }
+    
+    public Scan refresh(List<String> roots, Listener listener) {
+        Scan previous = currentScan;
+        if (previous != null) {
+            previous.cancel();
+        }
+        Scan scan = new Scan(new ArrayList<>(roots), epochs.incrementAndGet());
+        currentScan = scan;
+        
+        FolderSizeEngine.getPool().execute(() -> {
+            load();
+            for (String root : scan.roots) {
+                FolderSizeEngine.getPool().execute(new DirectoryTask(null, scan, Paths.get(root)) {
+                    @Override
+                    public void onCompletion(CountedCompleter<?> caller) {
+                        if (scan.pendingRoots.decrementAndGet() > 0) return;
+                        if (!scan.isCancelled()) {
+                            removeUnseen(scan);
+                            ready = true;
+                            save();
+                        }
+                        scan.elapsedNanos = System.nanoTime() - scan.startNanos;
+                        Log.d(TAG, scan + " " + ContentIndex.this);
+                        if (listener != null) {
+                            listener.onComplete(scan);
+                        }
+                    }
+                });
+            }
+        });
+        return scan;
+    }
+    
+    // Whether searches can answer: a saved index was loaded or one full
+    // refresh finished
+    public boolean isReady() {
+        return ready;
+    }
+    
+    private class DirectoryTask extends CountedCompleter<Void> {
+        private final Scan scan;
+        private final Path directory;
+        
+        DirectoryTask(DirectoryTask parent, Scan scan, Path directory) {
+            super(parent);
+            this.scan = scan;
+            this.directory = directory;
+        }
+        
+        @Override
+        public void compute() {
+            if (!scan.isCancelled()) {
+                walk();
+            }
+            tryComplete();
+        }
+        
+        // Hidden entries are app data and caches, not something to search
+        private void walk() {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    if (scan.isCancelled()) break;
+                    String name = entry.getFileName().toString();
+                    if (name.startsWith(".")) continue;
+                    
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException | SecurityException e) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        addToPendingCount(1);
+                        new DirectoryTask(this, scan, entry).fork();
+                    } else if (attrs.isRegularFile() && attrs.size() <= MAX_FILE_SIZE && isIndexable(name)) {
+                        update(scan, entry, attrs.size(), attrs.lastModifiedTime().toMillis());
+                    }
+                }
+            } catch (IOException | SecurityException e) {
+                Log.w(TAG, "Cannot read directory: " + directory, e);
+            }
+        }
+    }
+    
+    private void update(Scan scan, Path file, long size, long lastModified) {
+        String path = file.toString();
+        Doc old;
+        lock.readLock().lock();
+        try {
+            old = docs.get(path);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (old != null && old.size == size && old.lastModified == lastModified) {
+            old.seenBy = scan.epoch;
+            scan.unchanged.incrementAndGet();
+            return;
+        }
+        // Changed files are still re-read, their old postings make room
+        if (old == null && livePostings >= MAX_POSTINGS) {
+            scan.overBudget.incrementAndGet();
+            return;
+        }
+        
+        long[] fileWords = readWords(file, size);
+        if (fileWords == null) return;
+        if (fileWords.length == 0 && size > 0) {
+            scan.binary.incrementAndGet();
+        } else {
+            scan.indexed.incrementAndGet();
+        }
+        // Binary files stay in as empty docs, so they are not probed again
+        Doc doc = new Doc(path, size, lastModified, fileWords.length);
+        doc.seenBy = scan.epoch;
+        put(doc, fileWords);
+    }
+    
+    // Sorted distinct word hashes, empty for a binary file, null if unreadable
+    private static long[] readWords(Path file, long size) {
+        if (size == 0) return NO_WORDS;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int length = (int) size;
+            for (int i = 0, probe = Math.min(length, BINARY_PROBE_BYTES); i < probe; i++) {
+                if (buffer.get(i) == 0) return NO_WORDS;
+            }
+            
+            WordSet set = new WordSet();
+            tokenize(buffer, 0, length, (hash, start, end) -> set.add(hash));
+            return set.toSortedArray();
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Cannot read file: " + file, e);
+            return null;
+        }
+    }
+    
+    // Receives each word's hash and the range of its bytes
+    private interface WordSink {
+        void accept(long hash, int start, int end);
+    }
+    
+    // Splits bytes into words: runs of ASCII letters, digits and '_' plus any
+    // non-ASCII byte, so UTF-8 words stay whole. ASCII and the Latin-1
+    // capitals (À..Þ, encoded C3 80..9E) are folded to lower case.
+    private static void tokenize(ByteBuffer buffer, int from, int to, WordSink sink) {
+        long hash = FNV_OFFSET;
+        int length = 0;
+        int previous = 0;
+        for (int i = from; i <= to; i++) {
+            int b = i < to ? buffer.get(i) & 0xFF : ' ';
+            boolean wordByte = b >= 0x80 || b == '_'
+                    || (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+            if (wordByte) {
+                b = fold(b, previous);
+                previous = b;
+                hash = (hash ^ b) * FNV_PRIME;
+                length++;
+            } else if (length > 0) {
+                if (length >= MIN_WORD && length <= MAX_WORD) {
+                    // 0 marks an empty PostingTable slot
+                    sink.accept(hash != 0 ? hash : 1, i - length, i);
+                }
+                hash = FNV_OFFSET;
+                length = 0;
+                previous = 0;
+            }
+        }
+    }
+    
+    private static int fold(int b, int previous) {
+        if (b >= 'A' && b <= 'Z') return b + ('a' - 'A');
+        if (previous == 0xC3 && b >= 0x80 && b <= 0x9E && b != 0x97) return b + 0x20;
+        return b;
+    }
+    
+    private static byte[] foldedBytes(ByteBuffer buffer, int start, int end) {
+        byte[] word = new byte[end - start];
+        int previous = 0;
+        for (int i = start; i < end; i++) {
+            previous = fold(buffer.get(i) & 0xFF, previous);
+            word[i - start] = (byte) previous;
+        }
+        return word;
+    }
+    
+    private static boolean isSameWord(ByteBuffer buffer, int start, int end, byte[] word) {
+        if (end - start != word.length) return false;
+        int previous = 0;
+        for (int i = start; i < end; i++) {
+            previous = fold(buffer.get(i) & 0xFF, previous);
+            if ((byte) previous != word[i - start]) return false;
+        }
+        return true;
+    }
+    
+    // Distinct query words: sorted hashes for the lookup, and each word's
+    // folded bytes at the same index for confirming a match in the file
+    private static class Query {
+        final long[] keys;
+        final byte[][] words;
+        
+        Query(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            TreeMap<Long, byte[]> found = new TreeMap<>();
+            tokenize(buffer, 0, bytes.length, (hash, start, end) -> {
+                if (found.size() < MAX_QUERY_WORDS) {
+                    found.putIfAbsent(hash, foldedBytes(buffer, start, end));
+                }
+            });
+            keys = new long[found.size()];
+            words = new byte[found.size()][];
+            int i = 0;
+            for (Map.Entry<Long, byte[]> entry : found.entrySet()) {
+                keys[i] = entry.getKey();
+                words[i++] = entry.getValue();
+            }
+        }
+    }
+    
+    private void put(Doc doc, long[] fileWords) {
+        lock.writeLock().lock();
+        try {
+            Doc old = docs.put(doc.path, doc);
+            if (old != null) {
+                retire(old);
+            }
+            doc.id = freeIds.isEmpty() ? byId.size() : freeIds.remove(freeIds.size() - 1);
+            if (doc.id == byId.size()) byId.add(null);
+            byId.set(doc.id, doc);
+            for (long word : fileWords) {
+                words.add(word, doc.id);
+            }
+            livePostings += fileWords.length;
+            if (retiredPostings >= MAX_STALE_POSTINGS) {
+                purgeRetired();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    // Searches skip the id from now on; its postings stay until purgeRetired.
+    // Callers hold the write lock.
+    private void retire(Doc doc) {
+        byId.set(doc.id, null);
+        retiredIds.set(doc.id);
+        retiredPostings += doc.wordCount;
+        livePostings -= doc.wordCount;
+    }
+    
+    private void purgeRetired() {
+        lock.writeLock().lock();
+        try {
+            if (retiredIds.isEmpty()) return;
+            long start = System.nanoTime();
+            words.removeAll(retiredIds);
+            for (int id = retiredIds.nextSetBit(0); id >= 0; id = retiredIds.nextSetBit(id + 1)) {
+                freeIds.add(id);
+            }
+            Log.d(TAG, "Purged " + retiredIds.cardinality() + " files, " + retiredPostings
+                    + " postings in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            retiredIds.clear();
+            retiredPostings = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    // Files below the scanned roots that the scan did not come across were
+    // deleted, moved or turned hidden
+    private void removeUnseen(Scan scan) {
+        List<String> prefixes = new ArrayList<>();
+        for (String root : scan.roots) {
+            prefixes.add(root.endsWith(File.separator) ? root : root + File.separator);
+        }
+        
+        lock.writeLock().lock();
+        try {
+            List<Doc> unseen = new ArrayList<>();
+            for (Doc doc : docs.values()) {
+                if (doc.seenBy == scan.epoch) continue;
+                for (String prefix : prefixes) {
+                    if (doc.path.startsWith(prefix)) {
+                        unseen.add(doc);
+                        break;
+                    }
+                }
+            }
+            for (Doc doc : unseen) {
+                docs.remove(doc.path);
+                retire(doc);
+            }
+            scan.removed.addAndGet(unseen.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    // Files containing every word of the query, each with the first lines
+    // that contain any of them. Words match whole, case-insensitively.
+    public Result search(String query, int limit) {
+        long start = System.nanoTime();
+        Query parsed = new Query(query);
+        long[] keys = parsed.keys;
+        List<String> candidates = new ArrayList<>();
+        
+        if (keys.length > 0) {
+            lock.readLock().lock();
+            try {
+                for (int id : words.intersect(keys, keys.length)) {
+                    Doc doc = byId.get(id);
+                    if (doc != null) {
+                        candidates.add(doc.path);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        long lookupNanos = System.nanoTime() - start;
+        
+        // Files can have changed since they were indexed, and two words can
+        // share a hash, so every candidate is confirmed against its contents,
+        // word by word
+        List<Hit> hits = new ArrayList<>();
+        for (String path : candidates) {
+            if (hits.size() >= limit) break;
+            List<Snippet> snippets = findSnippets(Paths.get(path), parsed);
+            if (snippets == null) continue;
+            
+            FileItem item = DirectoryLister.createFileItem(Paths.get(path));
+            if (item != null) {
+                hits.add(new Hit(item, snippets));
+            }
+        }
+        
+        Result result = new Result(query, hits, candidates.size(), lookupNanos, System.nanoTime() - start);
+        Log.d(TAG, result.toString());
+        return result;
+    }
+    
+    // Null unless every query word occurs somewhere in the file
+    private static List<Snippet> findSnippets(Path file, Query query) {
+        long[] keys = query.keys;
+        long all = keys.length == 64 ? -1L : (1L << keys.length) - 1;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAX_FILE_SIZE) return null;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int length = (int) size;
+            
+            List<Snippet> snippets = new ArrayList<>();
+            long seen = 0;
+            long[] lineMask = new long[1];
+            int lineNumber = 0;
+            for (int lineStart = 0; lineStart < length && (seen != all || snippets.size() < MAX_SNIPPETS); ) {
+                int lineEnd = lineStart;
+                while (lineEnd < length && buffer.get(lineEnd) != '\n') lineEnd++;
+                lineNumber++;
+                
+                lineMask[0] = 0;
+                tokenize(buffer, lineStart, lineEnd, (hash, start, end) -> {
+                    int at = Arrays.binarySearch(keys, hash);
+                    if (at >= 0 && isSameWord(buffer, start, end, query.words[at])) {
+                        lineMask[0] |= 1L << at;
+                    }
+                });
+                if (lineMask[0] != 0) {
+                    seen |= lineMask[0];
+                    if (snippets.size() < MAX_SNIPPETS) {
+                        snippets.add(new Snippet(lineNumber, lineText(buffer, lineStart, lineEnd)));
+                    }
+                }
+                lineStart = lineEnd + 1;
+            }
+            return seen == all ? snippets : null;
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+    
+    private static String lineText(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[Math.min(to - from, MAX_SNIPPET_CHARS * 2)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        String text = new String(bytes, StandardCharsets.UTF_8).trim();
+        return text.length() > MAX_SNIPPET_CHARS ? text.substring(0, MAX_SNIPPET_CHARS) + "…" : text;
+    }
+    
+    // Open-addressing set of the distinct word hashes of one file
+    private static class WordSet {
+        private long[] slots = new long[1024];
+        private int size;
+        
+        void add(long hash) {
+            if (size * 2 >= slots.length) grow();
+            int mask = slots.length - 1;
+            int i = (int) ((hash * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while (slots[i] != 0) {
+                if (slots[i] == hash) return;
+                i = (i + 1) & mask;
+            }
+            slots[i] = hash;
+            size++;
+        }
+        
+        private void grow() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            size = 0;
+            for (long hash : old) {
+                if (hash != 0) add(hash);
+            }
+        }
+        
+        long[] toSortedArray() {
+            long[] result = new long[size];
+            int count = 0;
+            for (long hash : slots) {
+                if (hash != 0) result[count++] = hash;
+            }
+            Arrays.sort(result);
+            return result;
+        }
+    }
+    
+    // The saved ids are kept, so the saved table can be read back as it is
+    private void load() {
+        lock.writeLock().lock();
+        try {
+            if (loaded) return;
+            loaded = true;
+            if (!indexFile.exists()) return;
+            
+            long start = System.nanoTime();
+            int count;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)))) {
+                if (in.readInt() != VERSION) return;
+                
+                count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    int id = in.readInt();
+                    Doc doc = new Doc(in.readUTF(), in.readLong(), in.readLong(), in.readInt());
+                    doc.id = id;
+                    docs.put(doc.path, doc);
+                    while (byId.size() <= id) byId.add(null);
+                    byId.set(id, doc);
+                    livePostings += doc.wordCount;
+                }
+                words.readFrom(in);
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading index, starting empty", e);
+                clear();
+                return;
+            }
+            
+            for (int id = 0; id < byId.size(); id++) {
+                if (byId.get(id) == null) freeIds.add(id);
+            }
+            ready = count > 0;
+            Log.d(TAG, "Loaded " + count + " files in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    // Callers hold the write lock
+    private void clear() {
+        docs.clear();
+        byId.clear();
+        freeIds.clear();
+        retiredIds.clear();
+        retiredPostings = 0;
+        livePostings = 0;
+        words.clear();
+    }
+    
+    // Purges under the write lock and downgrades to the read lock without
+    // letting go, so no retirement can slip in between and every id in the
+    // table belongs to a saved doc. Searches go on while it writes; the next
+    // scan waits.
+    private synchronized void save() {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        lock.writeLock().lock();
+        try {
+            purgeRetired();
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(VERSION);
+            out.writeInt(docs.size());
+            for (Doc doc : docs.values()) {
+                out.writeInt(doc.id);
+                out.writeUTF(doc.path);
+                out.writeLong(doc.size);
+                out.writeLong(doc.lastModified);
+                out.writeInt(doc.wordCount);
+            }
+            words.writeTo(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving index", e);
+            tempFile.delete();
+            return;
+        } finally {
+            lock.readLock().unlock();
+        }
+        
+        if (!tempFile.renameTo(indexFile)) {
+            Log.e(TAG, "Error replacing index file: " + indexFile);
+        }
+    }
+    
+    // Heap and disk footprint, for tuning the size limits above
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return "ContentIndex{files=" + docs.size() +
+                    ", distinctWords=" + words.keyCount() +
+                    ", postings=" + livePostings +
+                    ", retiredPostings=" + retiredPostings +
+                    ", postingKb=" + words.sizeBytes() / 1024 +
+                    ", fileKb=" + indexFile.length() / 1024 +
+                    '}';
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
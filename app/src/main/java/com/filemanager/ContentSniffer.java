@@ -0,0 +1,415 @@
+package com.filemanager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Detects a file's type from its first bytes, for files whose extension says
+// nothing (none, ".bin", ".download") and for picking the MIME type on open.
+// Reads at most HEADER_BYTES, only when asked for a row on screen or a file
+// being opened, on a small pool; results are cached by path, size and mtime.
+public class ContentSniffer {
+    
+    private static final String TAG = "ContentSniffer";
+    
+    // Enough for every signature below; the tar magic at 257 is the furthest
+    private static final int HEADER_BYTES = 512;
+    private static final int MAX_CACHE_ENTRIES = 4096;
+    private static final int THREADS = 2;
+    
+    private static ContentSniffer instance;
+    
+    public static class Detection {
+        // Nothing recognised; cached too, so the file is not read again
+        static final Detection UNKNOWN = new Detection(null, null, false);
+        
+        private final FileCategory category;
+        private final String mimeType;
+        // The signature is shared by several formats (zip holds docx and jar,
+        // mp4 holds m4a), so a known extension is more specific
+        private final boolean shared;
+        
+        Detection(FileCategory category, String mimeType, boolean shared) {
+            this.category = category;
+            this.mimeType = mimeType;
+            this.shared = shared;
+        }
+        
+        public FileCategory getCategory() { return category; }
+        public String getMimeType() { return mimeType; }
+        public boolean isKnown() { return category != null; }
+        
+        @Override
+        public String toString() {
+            return "Detection{" + category + ", " + mimeType + (shared ? ", shared" : "") + '}';
+        }
+    }
+    
+    public interface Callback {
+        // Runs on the main thread; the item's category is already updated
+        void onDetected(FileItem item, Detection detection);
+        
+        // Checked on the pool right before reading, so rows that scrolled away
+        // don't cost any I/O
+        default boolean isStillNeeded(FileItem item) { return true; }
+    }
+    
+    private static class Key {
+        final String path;
+        final long size;
+        final long lastModified;
+        
+        Key(FileItem item) {
+            this.path = item.getPath();
+            this.size = item.getSize();
+            this.lastModified = item.getLastModified();
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return size == other.size && lastModified == other.lastModified && path.equals(other.path);
+        }
+        
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + Long.hashCode(size ^ lastModified);
+        }
+    }
+    
+    private static class Waiter {
+        final FileItem item;
+        final Callback callback;
+        
+        Waiter(FileItem item, Callback callback) {
+            this.item = item;
+            this.callback = callback;
+        }
+    }
+    
+    private final LinkedHashMap<Key, Detection> cache = new LinkedHashMap<Key, Detection>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Detection> eldest) {
+            return size() > MAX_CACHE_ENTRIES;
+        }
+    };
+    // Files being read, with everyone waiting for them; guarded by cache
+    private final Map<Key, List<Waiter>> pending = new HashMap<>();
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    
+    private long filesRead;
+    private long requestsDropped;
+    
+    public static synchronized ContentSniffer getInstance() {
+        if (instance == null) {
+            instance = new ContentSniffer();
+        }
+        return instance;
+    }
+    
+    // Only files the extension table couldn't place are worth a read for their icon
+    public static boolean needsSniffing(FileItem item) {
+        return !item.isDirectory() && item.getSize() > 0 && item.getCategory() == FileCategory.OTHER;
+    }
+    
+    // Main thread only. A cached result is applied and delivered right away
+    // and true is returned; otherwise the file is read on the pool.
+    public boolean request(FileItem item, Callback callback) {
+        Key key = new Key(item);
+        Detection cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+            // Already being read for another row: just wait for that read
+            if (cached == null && !enqueue(key, new Waiter(item, callback))) return false;
+        }
+        if (cached != null) {
+            apply(item, cached);
+            callback.onDetected(item, cached);
+            return true;
+        }
+        
+        executor.execute(() -> run(key));
+        return false;
+    }
+    
+    // Returns whether the key is new and needs a read; guarded by cache
+    private boolean enqueue(Key key, Waiter waiter) {
+        List<Waiter> waiters = pending.get(key);
+        if (waiters != null) {
+            waiters.add(waiter);
+            return false;
+        }
+        waiters = new ArrayList<>(1);
+        waiters.add(waiter);
+        pending.put(key, waiters);
+        return true;
+    }
+    
+    private void run(Key key) {
+        synchronized (cache) {
+            List<Waiter> waiters = pending.get(key);
+            boolean needed = false;
+            for (Waiter waiter : waiters) {
+                if (waiter.callback.isStillNeeded(waiter.item)) {
+                    needed = true;
+                    break;
+                }
+            }
+            if (!needed) {
+                pending.remove(key);
+                requestsDropped++;
+                return;
+            }
+        }
+        
+        Detection detection;
+        boolean cacheable = true;
+        try {
+            detection = detect(key.path);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + key.path + ": " + e.getMessage());
+            detection = Detection.UNKNOWN;
+            // Unreadable now doesn't mean unreadable later (e.g. permission granted)
+            cacheable = false;
+        }
+        
+        List<Waiter> waiters;
+        synchronized (cache) {
+            filesRead++;
+            if (cacheable) cache.put(key, detection);
+            waiters = pending.remove(key);
+        }
+        
+        Detection result = detection;
+        mainHandler.post(() -> {
+            for (Waiter waiter : waiters) {
+                apply(waiter.item, result);
+                waiter.callback.onDetected(waiter.item, result);
+            }
+        });
+    }
+    
+    private static void apply(FileItem item, Detection detection) {
+        if (detection.isKnown() && item.getCategory() == FileCategory.OTHER) {
+            item.setCategory(detection.getCategory());
+        }
+    }
+    
+    // The MIME type to open the item with: the content's, unless the signature
+    // is a shared container and the extension names the actual format
+    public static String resolveMimeType(FileItem item, Detection detection) {
+        String byExtension = FileTypeDetector.getMimeType(item.getExtension());
+        if (detection == null || detection.getMimeType() == null) return byExtension;
+        if (byExtension != null && detection.shared) return byExtension;
+        return detection.getMimeType();
+    }
+    
+    // Blocking; reads at most HEADER_BYTES of the file
+    public static Detection detect(String path) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        int length = 0;
+        try (InputStream in = new FileInputStream(path)) {
+            int read;
+            while (length < header.length && (read = in.read(header, length, header.length - length)) > 0) {
+                length += read;
+            }
+        }
+        return detect(header, length);
+    }
+    
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A};
+    private static final byte[] GIF87 = ascii("GIF87a");
+    private static final byte[] GIF89 = ascii("GIF89a");
+    private static final byte[] BMP = ascii("BM");
+    private static final byte[] TIFF_LE = {'I', 'I', 0x2A, 0x00};
+    private static final byte[] TIFF_BE = {'M', 'M', 0x00, 0x2A};
+    private static final byte[] RIFF = ascii("RIFF");
+    private static final byte[] WEBP = ascii("WEBP");
+    private static final byte[] WAVE = ascii("WAVE");
+    private static final byte[] AVI = ascii("AVI ");
+    private static final byte[] FTYP = ascii("ftyp");
+    private static final byte[] EBML = {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3};
+    private static final byte[] WEBM_DOCTYPE = ascii("webm");
+    private static final byte[] FLV = {'F', 'L', 'V', 0x01};
+    private static final byte[] ASF = {0x30, 0x26, (byte) 0xB2, 0x75, (byte) 0x8E, 0x66, (byte) 0xCF, 0x11};
+    private static final byte[] MPEG_PS = {0x00, 0x00, 0x01, (byte) 0xBA};
+    private static final byte[] ID3 = ascii("ID3");
+    private static final byte[] OGG = ascii("OggS");
+    private static final byte[] FLAC = ascii("fLaC");
+    private static final byte[] MIDI = ascii("MThd");
+    private static final byte[] PDF = ascii("%PDF-");
+    private static final byte[] ZIP = {'P', 'K', 0x03, 0x04};
+    private static final byte[] RAR = {'R', 'a', 'r', '!', 0x1A, 0x07};
+    private static final byte[] SEVEN_ZIP = {'7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C};
+    private static final byte[] GZIP = {0x1F, (byte) 0x8B, 0x08};
+    private static final byte[] BZIP2 = ascii("BZh");
+    private static final byte[] XZ = {(byte) 0xFD, '7', 'z', 'X', 'Z', 0x00};
+    private static final byte[] ZSTD = {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD};
+    private static final byte[] TAR = ascii("ustar");
+    private static final int TAR_MAGIC_OFFSET = 257;
+    private static final int MPEG_TS_PACKET = 188;
+    
+    // Entries only an APK has at the front of its zip
+    private static final String[] APK_ENTRIES = {"AndroidManifest.xml", "classes.dex", "resources.arsc"};
+    
+    static Detection detect(byte[] h, int n) {
+        // Images
+        if (at(h, n, 0, JPEG)) return image("image/jpeg");
+        if (at(h, n, 0, PNG)) return image("image/png");
+        if (at(h, n, 0, GIF87) || at(h, n, 0, GIF89)) return image("image/gif");
+        if (at(h, n, 0, RIFF) && at(h, n, 8, WEBP)) return image("image/webp");
+        if (at(h, n, 0, TIFF_LE) || at(h, n, 0, TIFF_BE)) return image("image/tiff");
+        // "BM" alone is too common; the four reserved header bytes must be zero
+        if (at(h, n, 0, BMP) && n >= 10 && (h[6] | h[7] | h[8] | h[9]) == 0) return image("image/bmp");
+        
+        // ISO base media: the brand tells images, audio and video apart
+        if (at(h, n, 4, FTYP) && n >= 12) return isoMedia(new String(h, 8, 4, StandardCharsets.ISO_8859_1));
+        
+        // Video
+        if (at(h, n, 0, EBML)) {
+            return indexOf(h, n, WEBM_DOCTYPE) >= 0
+                    ? new Detection(FileCategory.VIDEO, "video/webm", false)
+                    : new Detection(FileCategory.VIDEO, "video/x-matroska", false);
+        }
+        if (at(h, n, 0, RIFF) && at(h, n, 8, AVI)) return video("video/x-msvideo");
+        if (at(h, n, 0, FLV)) return video("video/x-flv");
+        if (at(h, n, 0, ASF)) return video("video/x-ms-asf");
+        if (at(h, n, 0, MPEG_PS)) return video("video/mpeg");
+        if (n > MPEG_TS_PACKET * 2 && h[0] == 0x47 && h[MPEG_TS_PACKET] == 0x47 && h[MPEG_TS_PACKET * 2] == 0x47) {
+            return video("video/mp2t");
+        }
+        
+        // Audio
+        if (at(h, n, 0, ID3)) return audio("audio/mpeg");
+        if (at(h, n, 0, RIFF) && at(h, n, 8, WAVE)) return audio("audio/wav");
+        if (at(h, n, 0, FLAC)) return audio("audio/flac");
+        if (at(h, n, 0, MIDI)) return audio("audio/midi");
+        // Ogg can also carry video, but audio is by far the common case
+        if (at(h, n, 0, OGG)) return new Detection(FileCategory.AUDIO, "audio/ogg", true);
+        Detection frame = mpegAudioFrame(h, n);
+        if (frame != null) return frame;
+        
+        if (at(h, n, 0, PDF)) return new Detection(FileCategory.PDF, "application/pdf", false);
+        
+        // Archives
+        if (at(h, n, 0, ZIP)) return zip(h, n);
+        if (at(h, n, 0, RAR)) return archive("application/x-rar-compressed");
+        if (at(h, n, 0, SEVEN_ZIP)) return archive("application/x-7z-compressed");
+        if (at(h, n, 0, GZIP)) return archive("application/gzip");
+        if (at(h, n, 0, BZIP2)) return archive("application/x-bzip2");
+        if (at(h, n, 0, XZ)) return archive("application/x-xz");
+        if (at(h, n, 0, ZSTD)) return archive("application/zstd");
+        if (at(h, n, TAR_MAGIC_OFFSET, TAR)) return archive("application/x-tar");
+        
+        return Detection.UNKNOWN;
+    }
+    
+    private static Detection isoMedia(String brand) {
+        switch (brand) {
+            case "heic": case "heix": case "heim": case "heis": case "mif1": case "msf1":
+                return image("image/heic");
+            case "avif": case "avis":
+                return image("image/avif");
+            case "M4A ": case "M4B ": case "M4P ":
+                return audio("audio/mp4");
+            case "qt  ":
+                return video("video/quicktime");
+            default:
+                if (brand.startsWith("3gp") || brand.startsWith("3g2")) return video("video/3gpp");
+                // Generic brands (isom, mp41, mp42...) are used by .m4a files as well
+                return new Detection(FileCategory.VIDEO, "video/mp4", true);
+        }
+    }
+    
+    // MP3 and AAC have no magic, only a frame header; the reserved bitrate
+    // and sample rate values are rejected to keep random binaries out
+    private static Detection mpegAudioFrame(byte[] h, int n) {
+        if (n < 4 || (h[0] & 0xFF) != 0xFF || (h[1] & 0xE0) != 0xE0) return null;
+        int layer = (h[1] >> 1) & 0x03;
+        if (layer == 0) {
+            // ADTS: the layer bits are always zero
+            return (h[1] & 0xF6) == 0xF0 ? audio("audio/aac") : null;
+        }
+        int version = (h[1] >> 3) & 0x03;
+        int bitrate = (h[2] >> 4) & 0x0F;
+        int sampleRate = (h[2] >> 2) & 0x03;
+        if (version == 1 || bitrate == 0x0F || sampleRate == 0x03) return null;
+        return audio("audio/mpeg");
+    }
+    
+    // The first local file header names the first entry; APKs start with
+    // their manifest or dex, anything else stays a plain zip
+    private static Detection zip(byte[] h, int n) {
+        final int nameLengthOffset = 26;
+        final int nameOffset = 30;
+        if (n >= nameOffset) {
+            int nameLength = (h[nameLengthOffset] & 0xFF) | (h[nameLengthOffset + 1] & 0xFF) << 8;
+            if (nameOffset + nameLength <= n) {
+                String name = new String(h, nameOffset, nameLength, StandardCharsets.UTF_8);
+                for (String entry : APK_ENTRIES) {
+                    if (entry.equals(name)) {
+                        return new Detection(FileCategory.APK, "application/vnd.android.package-archive", false);
+                    }
+                }
+            }
+        }
+        return new Detection(FileCategory.ARCHIVE, "application/zip", true);
+    }
+    
+    private static Detection image(String mimeType) {
+        return new Detection(FileCategory.IMAGE, mimeType, false);
+    }
+    
+    private static Detection video(String mimeType) {
+        return new Detection(FileCategory.VIDEO, mimeType, false);
+    }
+    
+    private static Detection audio(String mimeType) {
+        return new Detection(FileCategory.AUDIO, mimeType, false);
+    }
+    
+    private static Detection archive(String mimeType) {
+        return new Detection(FileCategory.ARCHIVE, mimeType, false);
+    }
+    
+    private static boolean at(byte[] header, int length, int offset, byte[] magic) {
+        if (offset + magic.length > length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (header[offset + i] != magic[i]) return false;
+        }
+        return true;
+    }
+    
+    private static int indexOf(byte[] header, int length, byte[] magic) {
+        for (int i = 0; i + magic.length <= length; i++) {
+            if (at(header, length, i, magic)) return i;
+        }
+        return -1;
+    }
+    
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    public void logStats() {
+        synchronized (cache) {
+            Log.d(TAG, "Sniffer: " + filesRead + " files read, " + requestsDropped
+                    + " requests dropped, " + cache.size() + " cached");
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.filemanager;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Chunked file copy with progress, cancellation and resume. Each chunk is a
+// bounded transferTo call whose result is checked, so a short transfer is
+// retried instead of being mistaken for a finished copy. The chunk size is
+// tuned per destination volume so one chunk takes about CHUNK_TARGET_NANOS.
+// Throughput and ETA are measured as chunks are handed to the kernel, which is
+// the page cache rather than the disk; the single force() at the end flushes
+// whatever is still dirty, so a large copy can pause at 100% before finishing.
+public class CopyEngine {
+    
+    private static final String TAG = "CopyEngine";
+    
+    private static final long MIN_CHUNK_SIZE = 256 * 1024;
+    private static final long MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static final long CHUNK_TARGET_NANOS = 200_000_000L;
+    
+    // Bytes written so far, kept on the destination while a copy is
+    // unfinished. A preallocated file is full-size from the start, so its
+    // length says nothing about how much of it holds data.
+    private static final String PROGRESS_XATTR = "user.filemanager.copied";
+    
+    // Smoothed write throughput in bytes/sec, keyed by destination device id
+    private static final Map<Object, Long> volumeThroughput = new ConcurrentHashMap<>();
+    
+    public interface ProgressListener {
+        void onProgress(long bytesCopied, long totalBytes, long bytesPerSecond, long etaMillis);
+        
+        // Called before the first chunk of every file; bytesCopied restarts
+        // from startOffset for each file of a tree copy
+        default void onFileStarted(File source, long startOffset) {
+        }
+    }
+    
+    public static class Result {
+        private final boolean success;
+        private final boolean cancelled;
+        private final long bytesCopied;
+        private final long totalBytes;
+        private final long elapsedNanos;
+        private final String error;
+        
+        Result(boolean success, boolean cancelled, long bytesCopied, long totalBytes,
+               long elapsedNanos, String error) {
+            this.success = success;
+            this.cancelled = cancelled;
+            this.bytesCopied = bytesCopied;
+            this.totalBytes = totalBytes;
+            this.elapsedNanos = elapsedNanos;
+            this.error = error;
+        }
+        
+        public boolean isSuccess() { return success; }
+        public boolean isCancelled() { return cancelled; }
+        // After a failure or cancel this is the offset to resume from
+        public long getBytesCopied() { return bytesCopied; }
+        public long getTotalBytes() { return totalBytes; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        public String getError() { return error; }
+        
+        public long getBytesPerSecond() {
+            return elapsedNanos > 0 ? (long) (bytesCopied * 1e9 / elapsedNanos) : 0;
+        }
+        
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "success=" + success +
+                    ", cancelled=" + cancelled +
+                    ", bytesCopied=" + bytesCopied +
+                    ", totalBytes=" + totalBytes +
+                    ", elapsedMs=" + elapsedNanos / 1_000_000 +
+                    ", bytesPerSecond=" + getBytesPerSecond() +
+                    (error != null ? ", error='" + error + '\'' : "") +
+                    '}';
+        }
+    }
+    
+    private final ProgressListener listener;
+    private volatile boolean cancelled;
+    
+    public CopyEngine(ProgressListener listener) {
+        this.listener = listener;
+    }
+    
+    // Stops the current copy after the chunk in flight; the partial destination
+    // is kept so the copy can be resumed. The next copy or resume call clears it.
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    public Result copy(File source, File destination) {
+        return copy(source, destination, 0);
+    }
+    
+    // Continues a previous copy from the offset it recorded, or from the
+    // length of the partial destination when none was recorded
+    public Result resume(File source, File destination) {
+        long offset = recordedProgress(destination);
+        if (offset < 0) {
+            offset = destination.length();
+        }
+        return copy(source, destination, offset <= source.length() ? offset : 0);
+    }
+    
+    public Result copy(File source, File destination, long resumeOffset) {
+        cancelled = false;
+        return copyFile(source, destination, resumeOffset);
+    }
+    
+    private Result copyFile(File source, File destination, long resumeOffset) {
+        long start = System.nanoTime();
+        long position = resumeOffset;
+        long size = 0;
+        
+        File parent = destination.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        
+        Object volume = volumeKey(parent != null ? parent : destination);
+        long chunkSize = chunkSizeFor(volume);
+        // Set once the destination is open, so a failure before that never
+        // creates or truncates a file this call did not write to
+        boolean opened = false;
+        
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             RandomAccessFile outFile = new RandomAccessFile(destination, "rw");
+             FileChannel out = outFile.getChannel()) {
+            opened = true;
+            size = in.size();
+            if (position > size) {
+                position = 0;
+            }
+            if (listener != null) {
+                listener.onFileStarted(source, position);
+            }
+            out.truncate(position);
+            // Without a recorded offset a resume after a crash would take the
+            // preallocated length for copied data, so only preallocate when
+            // the volume keeps extended attributes
+            boolean tracked = recordProgress(destination, position);
+            if (tracked) {
+                preallocate(outFile, position, size - position);
+            }
+            
+            long lastChunkStart = System.nanoTime();
+            while (position < size) {
+                if (cancelled) {
+                    out.truncate(position);
+                    return finish(source, new Result(false, true, position, size,
+                            System.nanoTime() - start, null));
+                }
+                
+                long count = Math.min(chunkSize, size - position);
+                long transferred = 0;
+                while (transferred < count) {
+                    long n = in.transferTo(position + transferred, count - transferred,
+                            out.position(position + transferred));
+                    if (n <= 0) {
+                        throw new IOException("Source ended at " + (position + transferred)
+                                + " of " + size + " bytes");
+                    }
+                    transferred += n;
+                }
+                position += transferred;
+                if (tracked) {
+                    recordProgress(destination, position);
+                }
+                
+                long now = System.nanoTime();
+                long chunkNanos = Math.max(now - lastChunkStart, 1);
+                lastChunkStart = now;
+                chunkSize = recordThroughput(volume, transferred * 1_000_000_000L / chunkNanos);
+                
+                if (listener != null) {
+                    long elapsed = Math.max(now - start, 1);
+                    long bytesPerSecond = (long) ((position - resumeOffset) * 1e9 / elapsed);
+                    long etaMillis = bytesPerSecond > 0 ? (size - position) * 1000 / bytesPerSecond : -1;
+                    listener.onProgress(position, size, bytesPerSecond, etaMillis);
+                }
+            }
+            
+            // Make sure the data is on disk before a move deletes the source
+            out.force(false);
+            if (tracked) {
+                clearProgress(destination);
+            }
+            return finish(source, new Result(true, false, position, size,
+                    System.nanoTime() - start, null));
+        } catch (IOException | SecurityException e) {
+            Log.e(TAG, "Error copying " + source + " to " + destination, e);
+            if (opened) {
+                truncateQuietly(destination, position);
+            }
+            return finish(source, new Result(false, false, position, size,
+                    System.nanoTime() - start, e.getMessage()));
+        }
+    }
+    
+    // Copies a file or a whole directory tree. walkFileTree does not follow
+    // symlinks, so links are copied as links; file and folder mtimes are kept.
+    // Unlike copy, a cancel() that arrives before the walk starts still stops it.
+    public Result copyTree(File source, File destination) {
+        long start = System.nanoTime();
+        Path from = source.toPath();
+        Path to = destination.toPath();
+        long[] bytesCopied = {0};
+        
+        try {
+            Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (cancelled) throw new IOException("Cancelled");
+                    Files.createDirectories(to.resolve(from.relativize(dir)));
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (cancelled) throw new IOException("Cancelled");
+                    Path target = to.resolve(from.relativize(file));
+                    if (attrs.isRegularFile()) {
+                        Result result = copyFile(file.toFile(), target.toFile(), 0);
+                        bytesCopied[0] += result.getBytesCopied();
+                        if (!result.isSuccess()) {
+                            throw new IOException(result.isCancelled() ? "Cancelled" : result.getError());
+                        }
+                        Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+                    } else {
+                        Files.copy(file, target, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    if (e != null) throw e;
+                    FileTime lastModified = Files.getLastModifiedTime(dir);
+                    Files.setLastModifiedTime(to.resolve(from.relativize(dir)), lastModified);
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                    throw e;
+                }
+            });
+        } catch (IOException | SecurityException e) {
+            Log.e(TAG, "Error copying tree " + source + " to " + destination, e);
+            return new Result(false, cancelled, bytesCopied[0], bytesCopied[0],
+                    System.nanoTime() - start, e.getMessage());
+        }
+        return new Result(true, false, bytesCopied[0], bytesCopied[0], System.nanoTime() - start, null);
+    }
+    
+    private static Result finish(File source, Result result) {
+        Log.d(TAG, source.getName() + ": " + result);
+        return result;
+    }
+    
+    // Reserves the remaining blocks up front so a full volume fails before any
+    // data is written and the file is not fragmented by many small extends.
+    // Filesystems without fallocate support (FUSE, vfat) just skip this.
+    private static void preallocate(RandomAccessFile file, long offset, long length) throws IOException {
+        if (length <= 0) return;
+        try {
+            Os.posix_fallocate(file.getFD(), offset, length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("Insufficient space for " + length + " bytes", e);
+            }
+        }
+    }
+    
+    private static boolean recordProgress(File file, long position) {
+        try {
+            Os.setxattr(file.getPath(), PROGRESS_XATTR,
+                    Long.toString(position).getBytes(StandardCharsets.US_ASCII), 0);
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+    
+    // -1 when the file has no recorded offset
+    private static long recordedProgress(File file) {
+        try {
+            byte[] value = Os.getxattr(file.getPath(), PROGRESS_XATTR);
+            return Long.parseLong(new String(value, StandardCharsets.US_ASCII));
+        } catch (ErrnoException | NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static void clearProgress(File file) {
+        try {
+            Os.removexattr(file.getPath(), PROGRESS_XATTR);
+        } catch (ErrnoException ignored) {
+        }
+    }
+    
+    private static void truncateQuietly(File file, long length) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() > length) {
+                raf.setLength(length);
+            }
+        } catch (IOException | SecurityException ignored) {
+        }
+    }
+    
+    private static Object volumeKey(File file) {
+        try {
+            Object dev = Files.getAttribute(file.toPath(), "unix:dev");
+            if (dev != null) return dev;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException | SecurityException ignored) {
+        }
+        return file.getAbsolutePath();
+    }
+    
+    private static long chunkSizeFor(Object volume) {
+        Long throughput = volumeThroughput.get(volume);
+        return throughput != null ? chunkSizeForThroughput(throughput) : DEFAULT_CHUNK_SIZE;
+    }
+    
+    private static long recordThroughput(Object volume, long bytesPerSecond) {
+        long smoothed = volumeThroughput.merge(volume, bytesPerSecond,
+                (old, sample) -> (old * 3 + sample) / 4);
+        return chunkSizeForThroughput(smoothed);
+    }
+    
+    // Power of two closest below the bytes written in CHUNK_TARGET_NANOS
+    private static long chunkSizeForThroughput(long bytesPerSecond) {
+        long target = bytesPerSecond * CHUNK_TARGET_NANOS / 1_000_000_000L;
+        long chunk = Long.highestOneBit(Math.max(target, 1));
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunk));
+    }
+}
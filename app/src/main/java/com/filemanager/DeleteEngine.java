@@ -0,0 +1,255 @@
+package com.filemanager;
+
+import android.util.Log;
+import com.filemanager.models.OperationResult;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Parallel tree delete on the shared fork-join pool. Every directory is a
+// task that unlinks its files and forks its subdirectories; a directory is
+// removed in onCompletion, i.e. only after all of its children finished.
+// Symlinks are deleted as links and never followed.
+public class DeleteEngine {
+    
+    private static final String TAG = "DeleteEngine";
+    
+    private static final long PROGRESS_INTERVAL_NANOS = 100_000_000L;
+    
+    // Large flat directories are split so their files unlink on several workers
+    private static final int FILE_BATCH_SIZE = 256;
+    
+    public interface Listener {
+        // Both callbacks run on a pool thread
+        void onProgress(long filesDeleted, long directoriesDeleted, int failed);
+        void onComplete(OperationResult result);
+    }
+    
+    public static class Task {
+        private final Listener listener;
+        private final long startNanos = System.nanoTime();
+        private final LongAdder filesDeleted = new LongAdder();
+        private final LongAdder directoriesDeleted = new LongAdder();
+        private final LongAdder bytesDeleted = new LongAdder();
+        private final Queue<OperationResult.Failure> failures = new ConcurrentLinkedQueue<>();
+        private final AtomicLong lastProgressNanos = new AtomicLong(startNanos);
+        private volatile boolean cancelled;
+        
+        Task(Listener listener) {
+            this.listener = listener;
+        }
+        
+        public void cancel() {
+            cancelled = true;
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        
+        void fail(Path path, Exception e) {
+            String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            failures.add(new OperationResult.Failure(path.toString(), reason));
+        }
+        
+        void maybeReportProgress() {
+            if (listener == null) return;
+            long now = System.nanoTime();
+            long last = lastProgressNanos.get();
+            if (now - last >= PROGRESS_INTERVAL_NANOS && lastProgressNanos.compareAndSet(last, now)) {
+                listener.onProgress(filesDeleted.sum(), directoriesDeleted.sum(), failures.size());
+            }
+        }
+        
+        OperationResult toResult() {
+            OperationResult result = new OperationResult();
+            result.setSucceeded(filesDeleted.sum() + directoriesDeleted.sum());
+            result.setBytes(bytesDeleted.sum());
+            result.setElapsedNanos(System.nanoTime() - startNanos);
+            result.setCancelled(cancelled);
+            result.addFailures(new ArrayList<>(failures));
+            return result;
+        }
+    }
+    
+    public static Task delete(List<File> roots, Listener listener) {
+        Task task = new Task(listener);
+        FolderSizeEngine.getPool().execute(new RootTask(task, roots));
+        return task;
+    }
+    
+    public static OperationResult deleteBlocking(File file) {
+        Task task = new Task(null);
+        FolderSizeEngine.getPool().invoke(new RootTask(task, Collections.singletonList(file)));
+        return task.toResult();
+    }
+    
+    private static class RootTask extends CountedCompleter<Void> {
+        private final Task task;
+        private final List<File> roots;
+        
+        RootTask(Task task, List<File> roots) {
+            this.task = task;
+            this.roots = roots;
+        }
+        
+        @Override
+        public void compute() {
+            for (File root : roots) {
+                if (task.isCancelled()) break;
+                Path path = root.toPath();
+                BasicFileAttributes attrs = readAttributes(task, path);
+                if (attrs == null) continue;
+                
+                if (attrs.isDirectory()) {
+                    addToPendingCount(1);
+                    new DirectoryTask(this, task, path).fork();
+                } else if (deleteFile(task, path)) {
+                    task.filesDeleted.increment();
+                    task.bytesDeleted.add(attrs.size());
+                }
+            }
+            tryComplete();
+        }
+        
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            OperationResult result = task.toResult();
+            Log.d(TAG, roots.size() + " root(s): " + result);
+            if (task.listener != null) {
+                task.listener.onComplete(result);
+            }
+        }
+    }
+    
+    private static class DirectoryTask extends CountedCompleter<Void> {
+        private final Task task;
+        private final Path directory;
+        
+        DirectoryTask(CountedCompleter<?> parent, Task task, Path directory) {
+            super(parent);
+            this.task = task;
+            this.directory = directory;
+        }
+        
+        @Override
+        public void compute() {
+            if (!task.isCancelled()) {
+                List<Path> files = new ArrayList<>();
+                long[] sizes = new long[FILE_BATCH_SIZE];
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                    for (Path entry : stream) {
+                        if (task.isCancelled()) break;
+                        BasicFileAttributes attrs = readAttributes(task, entry);
+                        if (attrs == null) continue;
+                        
+                        if (attrs.isDirectory()) {
+                            addToPendingCount(1);
+                            new DirectoryTask(this, task, entry).fork();
+                        } else {
+                            sizes[files.size()] = attrs.size();
+                            files.add(entry);
+                            if (files.size() == FILE_BATCH_SIZE) {
+                                addToPendingCount(1);
+                                new FileBatchTask(this, task, files, sizes).fork();
+                                files = new ArrayList<>();
+                                sizes = new long[FILE_BATCH_SIZE];
+                            }
+                        }
+                    }
+                } catch (IOException | SecurityException e) {
+                    task.fail(directory, e);
+                }
+                deleteFiles(task, files, sizes);
+                task.maybeReportProgress();
+            }
+            tryComplete();
+        }
+        
+        // All children are done here, so the directory should now be empty
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            if (task.isCancelled()) return;
+            try {
+                Files.delete(directory);
+                task.directoriesDeleted.increment();
+            } catch (NoSuchFileException ignored) {
+            } catch (IOException | SecurityException e) {
+                task.fail(directory, e);
+            }
+            task.maybeReportProgress();
+        }
+    }
+    
+    private static class FileBatchTask extends CountedCompleter<Void> {
+        private final Task task;
+        private final List<Path> files;
+        private final long[] sizes;
+        
+        FileBatchTask(CountedCompleter<?> parent, Task task, List<Path> files, long[] sizes) {
+            super(parent);
+            this.task = task;
+            this.files = files;
+            this.sizes = sizes;
+        }
+        
+        @Override
+        public void compute() {
+            deleteFiles(task, files, sizes);
+            task.maybeReportProgress();
+            tryComplete();
+        }
+    }
+    
+    private static BasicFileAttributes readAttributes(Task task, Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            // Already gone, nothing to do
+            return null;
+        } catch (IOException | SecurityException e) {
+            task.fail(path, e);
+            return null;
+        }
+    }
+    
+    // sizes[i] is the size of files.get(i); each file counts once it is gone,
+    // so a cancel or a failure mid-batch still reports what was deleted
+    private static void deleteFiles(Task task, List<Path> files, long[] sizes) {
+        long deleted = 0;
+        long bytes = 0;
+        for (int i = 0; i < files.size() && !task.isCancelled(); i++) {
+            if (deleteFile(task, files.get(i))) {
+                deleted++;
+                bytes += sizes[i];
+            }
+        }
+        task.filesDeleted.add(deleted);
+        task.bytesDeleted.add(bytes);
+    }
+    
+    private static boolean deleteFile(Task task, Path file) {
+        try {
+            Files.delete(file);
+            return true;
+        } catch (NoSuchFileException e) {
+            return true;
+        } catch (IOException | SecurityException e) {
+            task.fail(file, e);
+            return false;
+        }
+    }
+}
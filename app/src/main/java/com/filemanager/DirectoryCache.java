@@ -0,0 +1,149 @@
+package com.filemanager;
+
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Bounded LRU cache of raw directory listings. Entries are validated against
+// the directory mtime on every lookup and evicted by estimated heap size.
+public class DirectoryCache {
+    
+    private static final String TAG = "DirectoryCache";
+    
+    // Rough per-entry heap cost: FileItem object plus the name String and its
+    // array headers; name characters are counted on top
+    private static final int ITEM_OVERHEAD_BYTES = 104;
+    
+    private static DirectoryCache instance;
+    
+    private static class Entry {
+        final List<FileItem> items;
+        final long lastModified;
+        final long bytes;
+        
+        Entry(List<FileItem> items, long lastModified, long bytes) {
+            this.items = items;
+            this.lastModified = lastModified;
+            this.bytes = bytes;
+        }
+    }
+    
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxBytes;
+    private long currentBytes;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    
+    public static synchronized DirectoryCache getInstance() {
+        if (instance == null) {
+            // An eighth of the heap, capped so huge heaps don't hoard listings
+            long maxBytes = Math.min(Runtime.getRuntime().maxMemory() / 8, 64L * 1024 * 1024);
+            instance = new DirectoryCache(maxBytes);
+        }
+        return instance;
+    }
+    
+    public DirectoryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+    
+    // Returns a copy of the cached listing, or null if it is missing or the
+    // directory has been modified since it was cached
+    public List<FileItem> get(String path) {
+        long lastModified = new File(path).lastModified();
+        
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry == null) {
+                missCount++;
+                return null;
+            }
+            if (entry.lastModified != lastModified) {
+                removeEntry(path);
+                missCount++;
+                return null;
+            }
+            hitCount++;
+            return new ArrayList<>(entry.items);
+        }
+    }
+    
+    // lastModified must be read before the directory is enumerated, so a change
+    // made during enumeration invalidates the entry on the next lookup
+    public synchronized void put(String path, long lastModified, List<FileItem> items) {
+        if (lastModified == 0) return;
+        
+        long bytes = estimateBytes(path, items);
+        if (bytes > maxBytes) return;
+        
+        removeEntry(path);
+        entries.put(path, new Entry(new ArrayList<>(items), lastModified, bytes));
+        currentBytes += bytes;
+        trimToSize(maxBytes);
+    }
+    
+    public synchronized void invalidate(String path) {
+        removeEntry(path);
+    }
+    
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+    
+    public synchronized void trimToSize(long targetBytes) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (currentBytes > targetBytes && iterator.hasNext()) {
+            currentBytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+    
+    public synchronized long getHitCount() { return hitCount; }
+    public synchronized long getMissCount() { return missCount; }
+    public synchronized long getEvictionCount() { return evictionCount; }
+    public synchronized long getSizeBytes() { return currentBytes; }
+    public long getMaxBytes() { return maxBytes; }
+    
+    private void removeEntry(String path) {
+        Entry removed = entries.remove(path);
+        if (removed != null) {
+            currentBytes -= removed.bytes;
+        }
+    }
+    
+    private static long estimateBytes(String path, List<FileItem> items) {
+        long bytes = 2L * path.length();
+        for (FileItem item : items) {
+            bytes += ITEM_OVERHEAD_BYTES;
+            // Parent paths and extensions are shared, so only the name counts
+            bytes += item.getName().length();
+        }
+        return bytes;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        long lookups = hitCount + missCount;
+        int hitPercent = lookups == 0 ? 0 : (int) (100 * hitCount / lookups);
+        return "DirectoryCache{" +
+                "entries=" + entries.size() +
+                ", bytes=" + currentBytes + "/" + maxBytes +
+                ", hits=" + hitCount +
+                ", misses=" + missCount +
+                ", hitRate=" + hitPercent + "%" +
+                ", evictions=" + evictionCount +
+                '}';
+    }
+    
+    public void logStats() {
+        Log.d(TAG, toString());
+    }
+}
@@ -0,0 +1,198 @@
+package com.filemanager;
+
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+// Single-pass directory listing: every entry is stat'ed exactly once through
+// a bulk attribute read instead of one syscall per File getter. Access rights
+// still come from access(2), since only that answers for the app's uid.
+public class DirectoryLister {
+    
+    private static final String TAG = "DirectoryLister";
+    
+    public static class Listing {
+        private final String path;
+        private final List<FileItem> items;
+        private final long enumerationNanos;
+        private final long statNanos;
+        private final boolean cancelled;
+        
+        Listing(String path, List<FileItem> items, long enumerationNanos, long statNanos, boolean cancelled) {
+            this.path = path;
+            this.items = items;
+            this.enumerationNanos = enumerationNanos;
+            this.statNanos = statNanos;
+            this.cancelled = cancelled;
+        }
+        
+        public String getPath() { return path; }
+        public List<FileItem> getItems() { return items; }
+        public long getEnumerationNanos() { return enumerationNanos; }
+        public long getStatNanos() { return statNanos; }
+        // A cancelled listing only holds the entries read before the cancel
+        public boolean isCancelled() { return cancelled; }
+        
+        @Override
+        public String toString() {
+            return "Listing{" +
+                    "path='" + path + '\'' +
+                    ", entries=" + items.size() +
+                    ", enumerationMs=" + enumerationNanos / 1_000_000 +
+                    ", statMs=" + statNanos / 1_000_000 +
+                    (cancelled ? ", cancelled" : "") +
+                    '}';
+        }
+    }
+    
+    public interface ChunkListener {
+        // Called on the listing thread with entries in directory order
+        void onChunk(List<FileItem> chunk);
+    }
+    
+    public interface CancellationSignal {
+        // Polled between entries, so a cancel takes effect within one stat
+        boolean isCancelled();
+    }
+    
+    // The first chunk is flushed once a screenful is read or the latency budget
+    // runs out; later chunks double in size so merging them stays cheap.
+    private static final int FIRST_CHUNK_SIZE = 32;
+    private static final long FIRST_CHUNK_BUDGET_NANOS = 50_000_000L;
+    private static final int MAX_CHUNK_SIZE = 8192;
+    private static final long CHUNK_INTERVAL_NANOS = 250_000_000L;
+    
+    public static Listing list(String path, boolean includeHidden) {
+        return list(path, includeHidden, null);
+    }
+    
+    public static Listing list(String path, boolean includeHidden, ChunkListener listener) {
+        return list(path, includeHidden, listener, null);
+    }
+    
+    public static Listing list(String path, boolean includeHidden, ChunkListener listener,
+                               CancellationSignal signal) {
+        Path directory = Paths.get(path);
+        
+        // Keep the historical order: directories, then files, then hidden entries
+        List<FileItem> directories = new ArrayList<>();
+        List<FileItem> files = new ArrayList<>();
+        List<FileItem> hidden = new ArrayList<>();
+        long enumerationNanos = 0;
+        long statNanos = 0;
+        
+        List<FileItem> chunk = listener != null ? new ArrayList<>() : null;
+        int chunkSize = FIRST_CHUNK_SIZE;
+        long chunkDeadline = System.nanoTime() + FIRST_CHUNK_BUDGET_NANOS;
+        boolean cancelled = false;
+        
+        // One parent String for the whole listing; items only keep their names
+        String parent = directory.toAbsolutePath().toString();
+        
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            long start = System.nanoTime();
+            for (Path entry : stream) {
+                if (signal != null && signal.isCancelled()) {
+                    cancelled = true;
+                    break;
+                }
+                long statStart = System.nanoTime();
+                enumerationNanos += statStart - start;
+                
+                FileItem item = createFileItem(entry, parent);
+                
+                start = System.nanoTime();
+                statNanos += start - statStart;
+                
+                if (item == null) continue;
+                if (item.isHidden()) {
+                    if (!includeHidden) continue;
+                    hidden.add(item);
+                } else if (item.isDirectory()) {
+                    directories.add(item);
+                } else {
+                    files.add(item);
+                }
+                
+                if (chunk != null) {
+                    chunk.add(item);
+                    if (chunk.size() >= chunkSize || start >= chunkDeadline) {
+                        listener.onChunk(chunk);
+                        chunk = new ArrayList<>();
+                        chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+                        chunkDeadline = System.nanoTime() + CHUNK_INTERVAL_NANOS;
+                    }
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            Log.e(TAG, "Error reading directory: " + path, e);
+        }
+        
+        if (chunk != null && !chunk.isEmpty() && !cancelled) {
+            listener.onChunk(chunk);
+        }
+        
+        List<FileItem> items = new ArrayList<>(directories.size() + files.size() + hidden.size());
+        items.addAll(directories);
+        items.addAll(files);
+        items.addAll(hidden);
+        
+        Listing listing = new Listing(path, items, enumerationNanos, statNanos, cancelled);
+        Log.d(TAG, listing.toString());
+        return listing;
+    }
+    
+    // Builds a FileItem from a single attribute read. Symlinks are followed like
+    // java.io.File does; dangling links fall back to the link's own attributes.
+    public static FileItem createFileItem(Path entry) {
+        Path parent = entry.toAbsolutePath().getParent();
+        return createFileItem(entry, parent != null ? parent.toString() : "");
+    }
+    
+    static FileItem createFileItem(Path entry, String parent) {
+        BasicFileAttributes attrs = readAttributes(entry);
+        if (attrs == null) {
+            attrs = readAttributes(entry, LinkOption.NOFOLLOW_LINKS);
+            if (attrs == null) return null;
+        }
+        return createFileItem(entry, parent, attrs);
+    }
+    
+    // For walkers that already hold the entry's attributes
+    static FileItem createFileItem(Path entry, String parent, BasicFileAttributes attrs) {
+        String name = entry.getFileName().toString();
+        
+        FileItem item = new FileItem();
+        item.setLocation(parent, name);
+        item.setDirectory(attrs.isDirectory());
+        item.setHidden(name.startsWith("."));
+        item.setSize(attrs.size());
+        item.setLastModified(attrs.lastModifiedTime().toMillis());
+        item.setExtension(FileUtils.getFileExtension(name));
+        item.setCategory(FileTypeDetector.getCategory(attrs.isDirectory(), item.getExtension()));
+        
+        // access(2) for the app's uid; the owner mode bits say nothing about
+        // that on FUSE/sdcardfs or group-owned storage
+        item.setReadable(Files.isReadable(entry));
+        item.setWritable(Files.isWritable(entry));
+        item.setExecutable(Files.isExecutable(entry));
+        
+        return item;
+    }
+    
+    static BasicFileAttributes readAttributes(Path entry, LinkOption... options) {
+        try {
+            return Files.readAttributes(entry, BasicFileAttributes.class, options);
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+}
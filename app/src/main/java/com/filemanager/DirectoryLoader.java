@@ -0,0 +1,176 @@
+package com.filemanager;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Loads directory listings for the browser. Every load gets a generation
+// number; starting a new one cancels the previous enumeration mid-walk, and
+// any result of a superseded generation that still reaches the main thread
+// is dropped, so fast navigation never flickers through stale folders.
+public class DirectoryLoader {
+    
+    private static final String TAG = "DirectoryLoader";
+    
+    public interface Callback {
+        // All callbacks run on the main thread, and only for the current load
+        void onListingStarted(String path);
+        void onChunk(String path, List<FileItem> sortedChunk);
+        void onLoadFinished(String path, String storageInfo);
+    }
+    
+    private static class Request implements DirectoryLister.CancellationSignal {
+        final int generation;
+        final String path;
+        volatile boolean cancelled;
+        // Main thread only
+        boolean started;
+        
+        Request(int generation, String path) {
+            this.generation = generation;
+            this.path = path;
+        }
+        
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+    
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile Request current;
+    
+    private final AtomicLong loadsStarted = new AtomicLong();
+    private final AtomicLong loadsCompleted = new AtomicLong();
+    private final AtomicLong loadsCancelled = new AtomicLong();
+    private final AtomicLong skippedBeforeStart = new AtomicLong();
+    private final AtomicLong entriesDiscarded = new AtomicLong();
+    private final AtomicLong staleDeliveries = new AtomicLong();
+    
+    public DirectoryLoader(Context context) {
+        this.context = context.getApplicationContext();
+    }
+    
+    // Must be called on the main thread; returns the generation of the new load
+    public int load(String path, boolean forceReload, SortEngine.Order order, Callback callback) {
+        Request request = new Request(generation.incrementAndGet(), path);
+        Request previous = current;
+        current = request;
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        loadsStarted.incrementAndGet();
+        
+        executor.execute(() -> run(request, forceReload, order, callback));
+        return request.generation;
+    }
+    
+    public boolean isCurrent(int generation) {
+        Request request = current;
+        return request != null && request.generation == generation && !request.cancelled;
+    }
+    
+    public void cancel() {
+        Request request = current;
+        if (request != null) {
+            request.cancelled = true;
+        }
+    }
+    
+    public void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+    
+    private void run(Request request, boolean forceReload, SortEngine.Order order, Callback callback) {
+        // Superseded while still queued behind another load
+        if (request.cancelled) {
+            skippedBeforeStart.incrementAndGet();
+            loadsCancelled.incrementAndGet();
+            return;
+        }
+        
+        String path = request.path;
+        DirectoryCache cache = DirectoryCache.getInstance();
+        DiskUsageIndex usageIndex = DiskUsageIndex.getInstance(context);
+        List<FileItem> cached = forceReload ? null : cache.get(path);
+        
+        if (cached != null) {
+            // Back/up navigation: render the whole listing from memory at once
+            usageIndex.applyTo(cached);
+            SortEngine.sort(cached, order);
+            DisplayFormatter.prepare(cached);
+            deliver(request, callback, () -> callback.onChunk(path, cached));
+        } else {
+            long lastModified = new File(path).lastModified();
+            
+            // Stream the listing: each chunk is sorted here and merged into the
+            // adapter on the main thread, so the first rows show up while the
+            // rest of the directory is still being read
+            DirectoryLister.Listing listing = DirectoryLister.list(path, true, chunk -> {
+                usageIndex.applyTo(chunk);
+                SortEngine.sort(chunk, order);
+                DisplayFormatter.prepare(chunk);
+                deliver(request, callback, () -> callback.onChunk(path, chunk));
+            }, request);
+            
+            if (listing.isCancelled()) {
+                // A partial listing must not end up in the cache
+                loadsCancelled.incrementAndGet();
+                entriesDiscarded.addAndGet(listing.getItems().size());
+                logStats();
+                return;
+            }
+            cache.put(path, lastModified, listing.getItems());
+        }
+        cache.logStats();
+        
+        String storageInfo = FileUtils.getStorageInfo(path);
+        loadsCompleted.incrementAndGet();
+        deliver(request, callback, () -> callback.onLoadFinished(path, storageInfo));
+    }
+    
+    // The first delivery of a load also tells the UI to swap in the new folder
+    private void deliver(Request request, Callback callback, Runnable action) {
+        mainHandler.post(() -> {
+            if (request != current || request.cancelled) {
+                staleDeliveries.incrementAndGet();
+                return;
+            }
+            
+            if (!request.started) {
+                request.started = true;
+                callback.onListingStarted(request.path);
+            }
+            action.run();
+        });
+    }
+    
+    @Override
+    public String toString() {
+        return "DirectoryLoader{" +
+                "generation=" + generation.get() +
+                ", started=" + loadsStarted.get() +
+                ", completed=" + loadsCompleted.get() +
+                ", cancelled=" + loadsCancelled.get() +
+                ", skippedBeforeStart=" + skippedBeforeStart.get() +
+                ", entriesDiscarded=" + entriesDiscarded.get() +
+                ", staleDeliveries=" + staleDeliveries.get() +
+                '}';
+    }
+    
+    public void logStats() {
+        Log.d(TAG, toString());
+    }
+}
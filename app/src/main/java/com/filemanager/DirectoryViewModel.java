@@ -0,0 +1,206 @@
+package com.filemanager;
+
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Holds the raw listing of the current folder once and derives what the list
+// shows from it: sort order, direction and hidden-file filtering. Each order
+// is sorted at most once per listing and kept, so switching between orders,
+// directions or the hidden toggle never goes back to the disk.
+// Main thread only.
+public class DirectoryViewModel {
+    
+    private static final String TAG = "DirectoryViewModel";
+    
+    public static final int SORT_NAME = 0;
+    public static final int SORT_SIZE = 1;
+    public static final int SORT_DATE = 2;
+    public static final int SORT_TYPE = 3;
+    private static final int SORT_TYPES = 4;
+    
+    private String path;
+    private final List<FileItem> raw = new ArrayList<>();
+    // Ascending permutation of raw per sort type, built on first use
+    private final FileItem[][] sorted = new FileItem[SORT_TYPES][];
+    // Directories lead every permutation; this is where the files start
+    private final int[] firstFile = new int[SORT_TYPES];
+    
+    private int sortType = SORT_NAME;
+    private boolean descending;
+    private boolean showHidden;
+    
+    public String getPath() { return path; }
+    public int getSortType() { return sortType; }
+    public boolean isDescending() { return descending; }
+    public boolean isShowHidden() { return showHidden; }
+    // Every entry of the folder, whatever the view settings
+    public List<FileItem> getItems() { return Collections.unmodifiableList(raw); }
+    
+    // Each order falls back to the name, so equal sizes or dates stay stable
+    public SortEngine.Order getOrder() {
+        return orderFor(sortType, descending);
+    }
+    
+    private static SortEngine.Order orderFor(int sortType, boolean descending) {
+        switch (sortType) {
+            case SORT_SIZE:
+                return new SortEngine.Order(descending, SortEngine.Key.SIZE, SortEngine.Key.NAME);
+            case SORT_DATE:
+                return new SortEngine.Order(descending, SortEngine.Key.DATE, SortEngine.Key.NAME);
+            case SORT_TYPE:
+                return new SortEngine.Order(descending, SortEngine.Key.TYPE, SortEngine.Key.NAME);
+            case SORT_NAME:
+            default:
+                return new SortEngine.Order(descending, SortEngine.Key.NAME);
+        }
+    }
+    
+    // An empty listing is sorted in every order, so streamed chunks are merged
+    // into the current order's permutation from the first one on
+    public void reset(String path) {
+        this.path = path;
+        raw.clear();
+        for (int i = 0; i < SORT_TYPES; i++) {
+            sorted[i] = new FileItem[0];
+            firstFile[i] = 0;
+        }
+    }
+    
+    public void setItems(String path, List<FileItem> items) {
+        this.path = path;
+        raw.clear();
+        raw.addAll(items);
+        invalidate();
+    }
+    
+    // Adds a streamed chunk, already sorted by getOrder(), and returns the part
+    // of it the current view shows. The current order's permutation is merged
+    // with the chunk instead of being sorted again; the others are dropped and
+    // sorted when next shown.
+    public List<FileItem> addChunk(List<FileItem> sortedChunk) {
+        raw.addAll(sortedChunk);
+        FileItem[] current = sorted[sortType];
+        invalidate();
+        if (current != null) {
+            merge(current, sortedChunk);
+        }
+        return showHidden ? sortedChunk : withoutHidden(sortedChunk);
+    }
+    
+    // Sort keys of the items changed in place
+    public void invalidate() {
+        for (int i = 0; i < SORT_TYPES; i++) {
+            sorted[i] = null;
+        }
+    }
+    
+    // Folder totals from the index only affect the size order
+    public void invalidateSizes() {
+        sorted[SORT_SIZE] = null;
+    }
+    
+    // Each setter returns whether the view changed
+    public boolean setSortType(int sortType) {
+        if (sortType < 0 || sortType >= SORT_TYPES || this.sortType == sortType) return false;
+        this.sortType = sortType;
+        return true;
+    }
+    
+    public boolean setDescending(boolean descending) {
+        if (this.descending == descending) return false;
+        this.descending = descending;
+        return true;
+    }
+    
+    public boolean setShowHidden(boolean showHidden) {
+        if (this.showHidden == showHidden) return false;
+        this.showHidden = showHidden;
+        return true;
+    }
+    
+    // The list as it should be shown with the current settings
+    public List<FileItem> getView() {
+        long start = System.nanoTime();
+        FileItem[] ascending = permutation(sortType);
+        int split = firstFile[sortType];
+        
+        List<FileItem> view = new ArrayList<>(ascending.length);
+        if (descending) {
+            // Every order ends in a total tie-break, so reversing the directory
+            // and file runs separately equals sorting with the reversed order
+            appendReversed(view, ascending, 0, split);
+            appendReversed(view, ascending, split, ascending.length);
+        } else {
+            for (FileItem item : ascending) {
+                if (showHidden || !item.isHidden()) view.add(item);
+            }
+        }
+        
+        Log.d(TAG, "View of " + raw.size() + " entries (" + view.size() + " shown) in "
+                + (System.nanoTime() - start) / 1000 + " us");
+        return view;
+    }
+    
+    private FileItem[] permutation(int sortType) {
+        FileItem[] items = sorted[sortType];
+        if (items == null) {
+            List<FileItem> copy = new ArrayList<>(raw);
+            SortEngine.sort(copy, orderFor(sortType, false));
+            items = copy.toArray(new FileItem[0]);
+            
+            int split = 0;
+            while (split < items.length && items[split].isDirectory()) split++;
+            sorted[sortType] = items;
+            firstFile[sortType] = split;
+        }
+        return items;
+    }
+    
+    private void merge(FileItem[] items, List<FileItem> sortedChunk) {
+        FileItem[] chunk = sortedChunk.toArray(new FileItem[0]);
+        int chunkSplit = 0;
+        while (chunkSplit < chunk.length && chunk[chunkSplit].isDirectory()) chunkSplit++;
+        if (descending) {
+            // Same run-wise reversal as getView, back to ascending
+            reverse(chunk, 0, chunkSplit);
+            reverse(chunk, chunkSplit, chunk.length);
+        }
+        
+        SortEngine.Order ascending = orderFor(sortType, false);
+        FileItem[] merged = new FileItem[items.length + chunk.length];
+        int i = 0, j = 0, k = 0;
+        while (i < items.length && j < chunk.length) {
+            merged[k++] = ascending.compare(chunk[j], items[i]) < 0 ? chunk[j++] : items[i++];
+        }
+        while (i < items.length) merged[k++] = items[i++];
+        while (j < chunk.length) merged[k++] = chunk[j++];
+        
+        sorted[sortType] = merged;
+        firstFile[sortType] += chunkSplit;
+    }
+    
+    private static void reverse(FileItem[] items, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            FileItem swap = items[i];
+            items[i] = items[j];
+            items[j] = swap;
+        }
+    }
+    
+    private void appendReversed(List<FileItem> view, FileItem[] items, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (showHidden || !items[i].isHidden()) view.add(items[i]);
+        }
+    }
+    
+    private static List<FileItem> withoutHidden(List<FileItem> items) {
+        List<FileItem> visible = new ArrayList<>(items.size());
+        for (FileItem item : items) {
+            if (!item.isHidden()) visible.add(item);
+        }
+        return visible;
+    }
+}
@@ -0,0 +1,336 @@
+package com.filemanager;
+
+import android.content.Context;
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Persistent per-directory disk usage index stored in the app's files dir.
+// A directory's mtime only changes when entries are added, removed or renamed,
+// so an unchanged directory reuses its indexed file totals and child list and
+// costs one stat on rescan; only changed directories are listed again.
+// In-place edits of existing files are picked up the next time their
+// directory changes, or by a forced refresh, which lists every directory.
+public class DiskUsageIndex {
+    
+    private static final String TAG = "DiskUsageIndex";
+    private static final String INDEX_FILE = "disk_usage.idx";
+    private static final int VERSION = 1;
+    
+    private static DiskUsageIndex instance;
+    
+    public interface Listener {
+        // Runs on a pool thread once the scan finished or was cancelled
+        void onComplete(Scan scan);
+    }
+    
+    private static class Node {
+        final long lastModified;
+        final long directBytes;
+        final long directFiles;
+        final String[] childNames;
+        long totalBytes;
+        long totalFiles;
+        
+        Node(long lastModified, long directBytes, long directFiles, String[] childNames) {
+            this.lastModified = lastModified;
+            this.directBytes = directBytes;
+            this.directFiles = directFiles;
+            this.childNames = childNames;
+            this.totalBytes = directBytes;
+            this.totalFiles = directFiles;
+        }
+        
+        synchronized void addChild(Node child) {
+            totalBytes += child.totalBytes;
+            totalFiles += child.totalFiles;
+        }
+    }
+    
+    public static class Scan {
+        private final String root;
+        private final boolean force;
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger rescanned = new AtomicInteger();
+        private final AtomicInteger reused = new AtomicInteger();
+        private final AtomicInteger removed = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile long elapsedNanos;
+        
+        Scan(String root, boolean force) {
+            this.root = root;
+            this.force = force;
+        }
+        
+        public void cancel() { cancelled = true; }
+        public boolean isCancelled() { return cancelled; }
+        public String getRoot() { return root; }
+        public int getRescannedDirectories() { return rescanned.get(); }
+        public int getReusedDirectories() { return reused.get(); }
+        public int getRemovedSubtrees() { return removed.get(); }
+        public long getElapsedNanos() { return elapsedNanos; }
+        
+        @Override
+        public String toString() {
+            return "Scan{" +
+                    "root='" + root + '\'' +
+                    ", force=" + force +
+                    ", rescanned=" + rescanned +
+                    ", reused=" + reused +
+                    ", removed=" + removed +
+                    ", elapsedMs=" + elapsedNanos / 1_000_000 +
+                    ", cancelled=" + cancelled +
+                    '}';
+        }
+    }
+    
+    private final File indexFile;
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    
+    public static synchronized DiskUsageIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new DiskUsageIndex(new File(context.getFilesDir(), INDEX_FILE));
+            instance.load();
+        }
+        return instance;
+    }
+    
+    DiskUsageIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+    
+    // Aggregated size of everything below path, or -1 if it was never indexed
+    public long getTotalSize(String path) {
+        Node node = nodes.get(path);
+        return node != null ? node.totalBytes : -1;
+    }
+    
+    public long getFileCount(String path) {
+        Node node = nodes.get(path);
+        return node != null ? node.totalFiles : -1;
+    }
+    
+    // Replaces the inode size of directory items with their indexed totals
+    public void applyTo(List<FileItem> items) {
+        for (FileItem item : items) {
+            if (!item.isDirectory()) continue;
+            Node node = nodes.get(item.getPath());
+            if (node != null) {
+                item.setSize(node.totalBytes);
+                item.setFileCount(node.totalFiles);
+            }
+        }
+    }
+    
+    public Scan refresh(String root, Listener listener) {
+        return refresh(root, false, listener);
+    }
+    
+    // A forced refresh ignores the indexed mtimes and lists every directory
+    // again, so files that grew or shrank in place are counted anew
+    public Scan refresh(String root, boolean force, Listener listener) {
+        Scan scan = new Scan(root, force);
+        FolderSizeEngine.getPool().execute(new DirectoryTask(null, scan, Paths.get(root)) {
+            @Override
+            public void onCompletion(CountedCompleter<?> caller) {
+                super.onCompletion(caller);
+                scan.elapsedNanos = System.nanoTime() - scan.startNanos;
+                Log.d(TAG, scan.toString());
+                // Most navigations find nothing new; cancelled scans may have
+                // skipped whole subtrees, so only a full pass is persisted
+                if (!scan.isCancelled() && (scan.rescanned.get() > 0 || scan.removed.get() > 0)) {
+                    save();
+                }
+                if (listener != null) {
+                    listener.onComplete(scan);
+                }
+            }
+        });
+        return scan;
+    }
+    
+    private class DirectoryTask extends CountedCompleter<Void> {
+        private final Scan scan;
+        private final Path directory;
+        private Node node;
+        
+        DirectoryTask(DirectoryTask parent, Scan scan, Path directory) {
+            super(parent);
+            this.scan = scan;
+            this.directory = directory;
+        }
+        
+        @Override
+        public void compute() {
+            if (!scan.isCancelled()) {
+                node = index();
+                if (node != null) {
+                    for (String name : node.childNames) {
+                        addToPendingCount(1);
+                        new DirectoryTask(this, scan, directory.resolve(name)).fork();
+                    }
+                }
+            }
+            tryComplete();
+        }
+        
+        private Node index() {
+            String path = directory.toString();
+            long lastModified;
+            try {
+                lastModified = Files.getLastModifiedTime(directory, LinkOption.NOFOLLOW_LINKS).toMillis();
+            } catch (IOException | SecurityException e) {
+                removeSubtree(scan, path);
+                return null;
+            }
+            
+            Node old = nodes.get(path);
+            if (!scan.force && old != null && old.lastModified == lastModified) {
+                scan.reused.incrementAndGet();
+                return new Node(lastModified, old.directBytes, old.directFiles, old.childNames);
+            }
+            
+            long bytes = 0;
+            long files = 0;
+            List<String> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException | SecurityException e) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        children.add(entry.getFileName().toString());
+                    } else if (attrs.isRegularFile()) {
+                        bytes += attrs.size();
+                        files++;
+                    }
+                }
+            } catch (IOException | SecurityException e) {
+                Log.w(TAG, "Cannot read directory: " + path, e);
+                return null;
+            }
+            scan.rescanned.incrementAndGet();
+            
+            String[] childNames = children.toArray(new String[0]);
+            if (old != null) {
+                Set<String> current = new HashSet<>(children);
+                for (String name : old.childNames) {
+                    if (!current.contains(name)) {
+                        removeSubtree(scan, directory.resolve(name).toString());
+                    }
+                }
+            }
+            return new Node(lastModified, bytes, files, childNames);
+        }
+        
+        // Children complete before their parent, so totals are final here.
+        // Cancelled subtrees keep their previous entries.
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            if (node == null || scan.isCancelled()) return;
+            nodes.put(directory.toString(), node);
+            CountedCompleter<?> parent = getCompleter();
+            if (parent instanceof DirectoryTask && ((DirectoryTask) parent).node != null) {
+                ((DirectoryTask) parent).node.addChild(node);
+            }
+        }
+    }
+    
+    private void removeSubtree(Scan scan, String path) {
+        String prefix = path + File.separator;
+        if (nodes.keySet().removeIf(key -> key.equals(path) || key.startsWith(prefix))) {
+            scan.removed.incrementAndGet();
+        }
+    }
+    
+    private synchronized void load() {
+        if (!indexFile.exists()) return;
+        
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != VERSION) return;
+            
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                long directBytes = in.readLong();
+                long directFiles = in.readLong();
+                String[] childNames = new String[in.readInt()];
+                for (int j = 0; j < childNames.length; j++) {
+                    childNames[j] = in.readUTF();
+                }
+                Node node = new Node(lastModified, directBytes, directFiles, childNames);
+                node.totalBytes = in.readLong();
+                node.totalFiles = in.readLong();
+                nodes.put(path, node);
+            }
+            Log.d(TAG, "Loaded " + count + " directories");
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading index, starting empty", e);
+            nodes.clear();
+        }
+    }
+    
+    private synchronized void save() {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        List<Map.Entry<String, Node>> entries = new ArrayList<>(nodes.entrySet());
+        
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Node> entry : entries) {
+                Node node = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(node.lastModified);
+                out.writeLong(node.directBytes);
+                out.writeLong(node.directFiles);
+                out.writeInt(node.childNames.length);
+                for (String name : node.childNames) {
+                    out.writeUTF(name);
+                }
+                out.writeLong(node.totalBytes);
+                out.writeLong(node.totalFiles);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving index", e);
+            tempFile.delete();
+            return;
+        }
+        
+        if (!tempFile.renameTo(indexFile)) {
+            Log.e(TAG, "Error replacing index file: " + indexFile);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "DiskUsageIndex{directories=" + nodes.size() + ", file='" + indexFile + "'}";
+    }
+}
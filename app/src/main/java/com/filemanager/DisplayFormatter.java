@@ -0,0 +1,235 @@
+package com.filemanager;
+
+import com.filemanager.models.FileItem;
+import com.filemanager.models.RowDisplay;
+import java.text.DecimalFormatSymbols;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+// Formats sizes and dates for list rows without DecimalFormat, SimpleDateFormat
+// or Date objects: digits are written into a char buffer with integer math.
+// Output matches the old "#,##0.#" size and "yyyy-MM-dd HH:mm" date patterns,
+// including the locale's digits and separators.
+public class DisplayFormatter {
+    
+    private static final String[] UNITS = {"B", "KB", "MB", "GB", "TB"};
+    private static final int MAX_CHARS = 32;
+    
+    private static final String FOLDER_TEXT = "Folder";
+    private static final String DIRECTORY_BADGE = "DIR";
+    private static final int MAX_BADGE_LENGTH = 4;
+    
+    // Locale data is read once and replaced as a whole when the default
+    // locale or time zone changes, so a thread never mixes two locales
+    private static final class Symbols {
+        final int epoch;
+        final Locale locale;
+        final TimeZone timeZone;
+        final char zeroDigit;
+        final char groupingSeparator;
+        final char decimalSeparator;
+        
+        Symbols(int epoch, Locale locale, TimeZone timeZone) {
+            DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+            this.epoch = epoch;
+            this.locale = locale;
+            this.timeZone = timeZone;
+            this.zeroDigit = symbols.getZeroDigit();
+            this.groupingSeparator = symbols.getGroupingSeparator();
+            this.decimalSeparator = symbols.getDecimalSeparator();
+        }
+    }
+    
+    private static volatile Symbols symbols;
+    
+    private static final ThreadLocal<char[]> buffers = ThreadLocal.withInitial(() -> new char[MAX_CHARS]);
+    
+    // Fills in the row strings of every item that has none or a stale one.
+    // Meant for the loading thread, so binding a row only sets text.
+    public static void prepare(List<FileItem> items) {
+        refreshLocale();
+        for (FileItem item : items) {
+            if (!isCurrent(item.getRowDisplay(), item)) {
+                prepare(item);
+            }
+        }
+    }
+    
+    // Whether display still shows item, in the current locale
+    public static boolean isCurrent(RowDisplay display, FileItem item) {
+        return display != null && display.getFormatEpoch() == symbols.epoch && display.matches(item);
+    }
+    
+    public static RowDisplay prepare(FileItem item) {
+        char[] buffer = buffers.get();
+        Symbols s = symbols;
+        
+        String sizeText;
+        if (item.isDirectory()) {
+            if (item.getFileCount() >= 0) {
+                // Aggregated totals from the disk usage index
+                int length = formatSize(s, item.getSize(), buffer, 0);
+                sizeText = new String(buffer, 0, length) + " · " + item.getFileCount() + " files";
+            } else {
+                sizeText = FOLDER_TEXT;
+            }
+        } else {
+            sizeText = new String(buffer, 0, formatSize(s, item.getSize(), buffer, 0));
+        }
+        
+        String dateText = new String(buffer, 0, formatDate(s, item.getLastModified(), buffer, 0));
+        
+        String badgeText;
+        if (item.isDirectory()) {
+            badgeText = DIRECTORY_BADGE;
+        } else {
+            String extension = item.getExtension() != null ? item.getExtension() : "";
+            badgeText = extension.toUpperCase(Locale.ROOT);
+            if (badgeText.length() > MAX_BADGE_LENGTH) {
+                badgeText = badgeText.substring(0, MAX_BADGE_LENGTH);
+            }
+        }
+        
+        RowDisplay display = new RowDisplay(sizeText, dateText, badgeText,
+                item.getSize(), item.getLastModified(), item.getFileCount(), s.epoch);
+        item.setRowDisplay(display);
+        return display;
+    }
+    
+    public static String formatSize(long size) {
+        refreshLocale();
+        char[] buffer = buffers.get();
+        return new String(buffer, 0, formatSize(symbols, size, buffer, 0));
+    }
+    
+    // Writes e.g. "1,536.5 KB" at offset and returns the end offset. Rounds to
+    // one decimal half-even like DecimalFormat; the division by 1024^n is
+    // exact in binary, so this gives the same digits. Above 2^53 bytes (8 PB)
+    // the old double math lost digits first, and this stays exact instead.
+    public static int formatSize(long size, char[] out, int offset) {
+        return formatSize(symbols, size, out, offset);
+    }
+    
+    private static int formatSize(Symbols s, long size, char[] out, int offset) {
+        if (size <= 0) {
+            out[offset++] = s.zeroDigit;
+            out[offset++] = ' ';
+            out[offset++] = 'B';
+            return offset;
+        }
+        
+        int group = (63 - Long.numberOfLeadingZeros(size)) / 10;
+        if (group >= UNITS.length) group = UNITS.length - 1;
+        
+        long whole;
+        int tenth;
+        if (group == 0) {
+            whole = size;
+            tenth = 0;
+        } else {
+            int shift = 10 * group;
+            // size * 10 can't overflow below 2^59, and larger sizes don't exist
+            long scaled = size * 10;
+            long tenths = scaled >>> shift;
+            long remainder = scaled & ((1L << shift) - 1);
+            long half = 1L << (shift - 1);
+            if (remainder > half || (remainder == half && (tenths & 1) == 1)) {
+                tenths++;
+            }
+            whole = tenths / 10;
+            tenth = (int) (tenths % 10);
+        }
+        
+        offset = writeGrouped(s, whole, out, offset);
+        if (tenth != 0) {
+            out[offset++] = s.decimalSeparator;
+            out[offset++] = (char) (s.zeroDigit + tenth);
+        }
+        out[offset++] = ' ';
+        String unit = UNITS[group];
+        for (int i = 0; i < unit.length(); i++) {
+            out[offset++] = unit.charAt(i);
+        }
+        return offset;
+    }
+    
+    // Writes "yyyy-MM-dd HH:mm" in the default time zone and returns the end offset
+    public static int formatDate(long millis, char[] out, int offset) {
+        return formatDate(symbols, millis, out, offset);
+    }
+    
+    private static int formatDate(Symbols s, long millis, char[] out, int offset) {
+        long local = millis + s.timeZone.getOffset(millis);
+        long days = Math.floorDiv(local, 86_400_000L);
+        int minuteOfDay = (int) (Math.floorMod(local, 86_400_000L) / 60_000L);
+        
+        // Days since 1970-01-01 to a civil date (Howard Hinnant's algorithm)
+        long z = days + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long dayOfEra = z - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        
+        offset = writePadded(s, year, 4, out, offset);
+        out[offset++] = '-';
+        offset = writePadded(s, month, 2, out, offset);
+        out[offset++] = '-';
+        offset = writePadded(s, day, 2, out, offset);
+        out[offset++] = ' ';
+        offset = writePadded(s, minuteOfDay / 60, 2, out, offset);
+        out[offset++] = ':';
+        offset = writePadded(s, minuteOfDay % 60, 2, out, offset);
+        return offset;
+    }
+    
+    private static int writeGrouped(Symbols s, long value, char[] out, int offset) {
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) digits++;
+        int length = digits + (digits - 1) / 3;
+        
+        int position = offset + length - 1;
+        int written = 0;
+        do {
+            if (written > 0 && written % 3 == 0) {
+                out[position--] = s.groupingSeparator;
+            }
+            out[position--] = (char) (s.zeroDigit + (int) (value % 10));
+            value /= 10;
+            written++;
+        } while (value > 0);
+        return offset + length;
+    }
+    
+    private static int writePadded(Symbols s, long value, int width, char[] out, int offset) {
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) digits++;
+        int length = Math.max(width, digits);
+        for (int i = offset + length - 1; i >= offset; i--) {
+            out[i] = (char) (s.zeroDigit + (int) (value % 10));
+            value /= 10;
+        }
+        return offset + length;
+    }
+    
+    // TimeZone.getDefault() returns a copy, so it is only read here and not
+    // per row. A change bumps the epoch, which makes every RowDisplay stale.
+    public static synchronized void refreshLocale() {
+        Locale locale = Locale.getDefault();
+        TimeZone timeZone = TimeZone.getDefault();
+        Symbols current = symbols;
+        if (current == null) {
+            symbols = new Symbols(0, locale, timeZone);
+        } else if (!locale.equals(current.locale) || !timeZone.hasSameRules(current.timeZone)) {
+            symbols = new Symbols(current.epoch + 1, locale, timeZone);
+        }
+    }
+    
+    static {
+        refreshLocale();
+    }
+}
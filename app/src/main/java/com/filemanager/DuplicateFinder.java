@@ -0,0 +1,459 @@
+package com.filemanager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Finds files with identical contents in three stages, each one only
+// looking at what the previous stage could not rule out:
+//   1. a parallel walk groups files by exact size,
+//   2. files sharing a size are told apart by a hash of their first and last
+//      few KB, which separates nearly all media and downloads,
+//   3. what is left is hashed in full through memory-mapped reads, one
+//      fork-join task per file so large files spread over all cores.
+// Each size is finished on its own, so groups reach the UI while other
+// sizes are still being hashed.
+public class DuplicateFinder {
+    
+    private static final String TAG = "DuplicateFinder";
+    
+    // Bytes hashed at each end of a file in stage 2
+    private static final int PARTIAL_BYTES = 4096;
+    // Files are mapped a window at a time, so huge files need no huge mapping
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    private static final String DIGEST = "SHA-256";
+    
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    
+    public interface Listener {
+        // Both callbacks run on the main thread, and not after cancel()
+        void onGroup(Task task, Group group);
+        void onComplete(Task task, Summary summary);
+    }
+    
+    public static class Group {
+        private final long size;
+        private final List<FileItem> items;
+        
+        Group(long size, List<FileItem> items) {
+            this.size = size;
+            this.items = items;
+        }
+        
+        public long getSize() { return size; }
+        // Oldest first; that copy is the one to keep
+        public List<FileItem> getItems() { return items; }
+        // What deleting every copy but one frees
+        public long getReclaimableBytes() { return size * (items.size() - 1); }
+    }
+    
+    public static class Summary {
+        private final long files;
+        private final long sameSize;
+        private final long samePartialHash;
+        private final long groups;
+        private final long duplicates;
+        private final long reclaimableBytes;
+        private final long bytesHashed;
+        private final long elapsedNanos;
+        private final boolean cancelled;
+        
+        Summary(long files, long sameSize, long samePartialHash, long groups, long duplicates,
+                long reclaimableBytes, long bytesHashed, long elapsedNanos, boolean cancelled) {
+            this.files = files;
+            this.sameSize = sameSize;
+            this.samePartialHash = samePartialHash;
+            this.groups = groups;
+            this.duplicates = duplicates;
+            this.reclaimableBytes = reclaimableBytes;
+            this.bytesHashed = bytesHashed;
+            this.elapsedNanos = elapsedNanos;
+            this.cancelled = cancelled;
+        }
+        
+        public long getFiles() { return files; }
+        public long getGroups() { return groups; }
+        // Files beyond the first of each group
+        public long getDuplicates() { return duplicates; }
+        public long getReclaimableBytes() { return reclaimableBytes; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        public boolean isCancelled() { return cancelled; }
+        
+        @Override
+        public String toString() {
+            return "Summary{" +
+                    "files=" + files +
+                    ", sameSize=" + sameSize +
+                    ", samePartialHash=" + samePartialHash +
+                    ", groups=" + groups +
+                    ", duplicates=" + duplicates +
+                    ", reclaimableBytes=" + reclaimableBytes +
+                    ", bytesHashed=" + bytesHashed +
+                    ", elapsedMs=" + elapsedNanos / 1_000_000 +
+                    ", cancelled=" + cancelled +
+                    '}';
+        }
+    }
+    
+    private static class Candidate {
+        final Path path;
+        ByteBuffer hash; // Wrapped digest, so it can key a HashMap
+        
+        Candidate(Path path) {
+            this.path = path;
+        }
+    }
+    
+    public static class Task {
+        private final long minSize;
+        private final Listener listener;
+        private final long startNanos = System.nanoTime();
+        private final Map<Long, List<Candidate>> bySize = new ConcurrentHashMap<>();
+        // Hard links share their data, so deleting one frees nothing
+        private final Set<Object> seenFiles = ConcurrentHashMap.newKeySet();
+        private final LongAdder files = new LongAdder();
+        private final AtomicLong sameSize = new AtomicLong();
+        private final LongAdder samePartialHash = new LongAdder();
+        private final LongAdder groups = new LongAdder();
+        private final LongAdder duplicates = new LongAdder();
+        private final LongAdder reclaimableBytes = new LongAdder();
+        private final LongAdder bytesHashed = new LongAdder();
+        private volatile boolean cancelled;
+        
+        Task(long minSize, Listener listener) {
+            this.minSize = minSize;
+            this.listener = listener;
+        }
+        
+        public void cancel() {
+            cancelled = true;
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        
+        void emit(Group group) {
+            groups.increment();
+            duplicates.add(group.items.size() - 1);
+            reclaimableBytes.add(group.getReclaimableBytes());
+            mainHandler.post(() -> {
+                if (!cancelled) {
+                    listener.onGroup(this, group);
+                }
+            });
+        }
+        
+        void complete() {
+            Summary summary = new Summary(files.sum(), sameSize.get(), samePartialHash.sum(), groups.sum(),
+                    duplicates.sum(), reclaimableBytes.sum(), bytesHashed.sum(),
+                    System.nanoTime() - startNanos, cancelled);
+            Log.d(TAG, summary.toString());
+            mainHandler.post(() -> {
+                if (!cancelled) {
+                    listener.onComplete(this, summary);
+                }
+            });
+        }
+    }
+    
+    // Files smaller than minSize are ignored; at least 1, empty files are
+    // all equal and free nothing
+    public static Task find(List<String> roots, long minSize, Listener listener) {
+        Task task = new Task(Math.max(1, minSize), listener);
+        FolderSizeEngine.getPool().execute(new WalkRoot(task, roots));
+        return task;
+    }
+    
+    // Stage 1
+    private static class WalkRoot extends CountedCompleter<Void> {
+        private final Task task;
+        private final List<String> roots;
+        
+        WalkRoot(Task task, List<String> roots) {
+            this.task = task;
+            this.roots = roots;
+        }
+        
+        @Override
+        public void compute() {
+            for (String root : roots) {
+                addToPendingCount(1);
+                new WalkTask(this, task, Paths.get(root)).fork();
+            }
+            tryComplete();
+        }
+        
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            if (task.isCancelled()) {
+                task.complete();
+            } else {
+                FolderSizeEngine.getPool().execute(new HashPhase(task));
+            }
+        }
+    }
+    
+    private static class WalkTask extends CountedCompleter<Void> {
+        private final Task task;
+        private final Path directory;
+        
+        WalkTask(CountedCompleter<?> parent, Task task, Path directory) {
+            super(parent);
+            this.task = task;
+            this.directory = directory;
+        }
+        
+        @Override
+        public void compute() {
+            if (!task.isCancelled()) {
+                walk();
+            }
+            tryComplete();
+        }
+        
+        // Hidden entries are app data and caches, not the user's copies
+        private void walk() {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    if (task.isCancelled()) break;
+                    if (entry.getFileName().toString().startsWith(".")) continue;
+                    
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException | SecurityException e) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        addToPendingCount(1);
+                        new WalkTask(this, task, entry).fork();
+                    } else if (attrs.isRegularFile() && attrs.size() >= task.minSize) {
+                        Object fileKey = attrs.fileKey();
+                        if (fileKey != null && !task.seenFiles.add(fileKey)) continue;
+                        
+                        task.files.increment();
+                        task.bySize.compute(attrs.size(), (size, list) -> {
+                            if (list == null) list = new ArrayList<>(2);
+                            list.add(new Candidate(entry));
+                            return list;
+                        });
+                    }
+                }
+            } catch (IOException | SecurityException e) {
+                Log.w(TAG, "Cannot read directory: " + directory, e);
+            }
+        }
+    }
+    
+    // Stages 2 and 3, one task per size shared by two or more files
+    private static class HashPhase extends CountedCompleter<Void> {
+        private final Task task;
+        
+        HashPhase(Task task) {
+            this.task = task;
+        }
+        
+        @Override
+        public void compute() {
+            List<Long> sizes = new ArrayList<>();
+            for (Map.Entry<Long, List<Candidate>> entry : task.bySize.entrySet()) {
+                if (entry.getValue().size() > 1) {
+                    sizes.add(entry.getKey());
+                    task.sameSize.addAndGet(entry.getValue().size());
+                }
+            }
+            // This worker takes its own forks last-in first-out, so forking the
+            // smallest sizes first gets the largest, most reclaimable groups out first
+            sizes.sort(Comparator.naturalOrder());
+            for (long size : sizes) {
+                addToPendingCount(1);
+                new SizeTask(this, task, size, task.bySize.get(size)).fork();
+            }
+            task.bySize.clear();
+            tryComplete();
+        }
+        
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            task.complete();
+        }
+    }
+    
+    private static class SizeTask extends CountedCompleter<Void> {
+        private final Task task;
+        private final long size;
+        private final List<Candidate> candidates;
+        private List<List<Candidate>> partialGroups;
+        
+        SizeTask(CountedCompleter<?> parent, Task task, long size, List<Candidate> candidates) {
+            super(parent);
+            this.task = task;
+            this.size = size;
+            this.candidates = candidates;
+        }
+        
+        @Override
+        public void compute() {
+            if (task.isCancelled()) {
+                tryComplete();
+                return;
+            }
+            
+            for (Candidate candidate : candidates) {
+                candidate.hash = hashEnds(candidate.path, size);
+            }
+            partialGroups = groupByHash(candidates);
+            
+            if (size <= 2L * PARTIAL_BYTES) {
+                // The ends covered the whole file; these are final
+                for (List<Candidate> group : partialGroups) {
+                    emit(group);
+                }
+                partialGroups = null;
+            } else {
+                for (List<Candidate> group : partialGroups) {
+                    task.samePartialHash.add(group.size());
+                    for (Candidate candidate : group) {
+                        addToPendingCount(1);
+                        new FullHashTask(this, task, candidate, size).fork();
+                    }
+                }
+            }
+            tryComplete();
+        }
+        
+        // Runs once every full hash of this size is in
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            if (partialGroups == null || task.isCancelled()) return;
+            for (List<Candidate> group : partialGroups) {
+                for (List<Candidate> sameContent : groupByHash(group)) {
+                    emit(sameContent);
+                }
+            }
+        }
+        
+        private void emit(List<Candidate> sameContent) {
+            List<FileItem> items = new ArrayList<>(sameContent.size());
+            for (Candidate candidate : sameContent) {
+                FileItem item = DirectoryLister.createFileItem(candidate.path);
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+            if (items.size() < 2) return;
+            
+            items.sort(Comparator.comparingLong(FileItem::getLastModified));
+            DisplayFormatter.prepare(items);
+            task.emit(new Group(size, items));
+        }
+    }
+    
+    private static class FullHashTask extends CountedCompleter<Void> {
+        private final Task task;
+        private final Candidate candidate;
+        private final long size;
+        
+        FullHashTask(CountedCompleter<?> parent, Task task, Candidate candidate, long size) {
+            super(parent);
+            this.task = task;
+            this.candidate = candidate;
+            this.size = size;
+        }
+        
+        @Override
+        public void compute() {
+            candidate.hash = task.isCancelled() ? null : hashAll(task, candidate.path, size);
+            tryComplete();
+        }
+    }
+    
+    // Groups of two or more with the same hash; unreadable files (null hash) drop out
+    private static List<List<Candidate>> groupByHash(List<Candidate> candidates) {
+        Map<ByteBuffer, List<Candidate>> byHash = new HashMap<>();
+        for (Candidate candidate : candidates) {
+            if (candidate.hash == null) continue;
+            byHash.computeIfAbsent(candidate.hash, hash -> new ArrayList<>(2)).add(candidate);
+        }
+        
+        List<List<Candidate>> groups = new ArrayList<>();
+        for (List<Candidate> group : byHash.values()) {
+            if (group.size() > 1) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+    
+    private static ByteBuffer hashEnds(Path path, long size) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST);
+            if (size <= 2L * PARTIAL_BYTES) {
+                digest.update(readFully(channel, 0, (int) size));
+            } else {
+                digest.update(readFully(channel, 0, PARTIAL_BYTES));
+                digest.update(readFully(channel, size - PARTIAL_BYTES, PARTIAL_BYTES));
+            }
+            return ByteBuffer.wrap(digest.digest());
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Cannot read file: " + path, e);
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File shrank while reading");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    private static ByteBuffer hashAll(Task task, Path path, long size) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() != size) return null; // Changed since the walk
+            MessageDigest digest = MessageDigest.getInstance(DIGEST);
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                if (task.isCancelled()) return null;
+                long length = Math.min(MAP_WINDOW, size - position);
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                task.bytesHashed.add(length);
+            }
+            return ByteBuffer.wrap(digest.digest());
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Cannot read file: " + path, e);
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,33 +1,45 @@
 package com.filemanager;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
+import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 import com.filemanager.adapters.FileListAdapter;
 import com.filemanager.models.FileItem;
+import com.filemanager.models.OperationResult;
+import com.filemanager.services.FileOperationService;
+import com.filemanager.services.OperationScheduler;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 public class FileBrowserActivity extends AppCompatActivity implements 
         FileListAdapter.OnFileClickListener,
@@ -35,6 +47,22 @@ public class FileBrowserActivity extends AppCompatActivity implements
     
     private static final String TAG = "FileBrowserActivity";
     
+    // Narrowest grid cell; columns are as many as fit the screen
+    private static final int GRID_CELL_MIN_DP = 104;
+    // Grid holders kept per column for a fling's worth of rows
+    private static final int GRID_POOL_ROWS = 4;
+    
+    // Search stops collecting matches past this many
+    private static final int MAX_SEARCH_RESULTS = 2000;
+    // Content hits each read their file for snippets, so far fewer
+    private static final int MAX_CONTENT_RESULTS = 100;
+    // Smaller duplicates are not worth the user's time
+    private static final long MIN_DUPLICATE_SIZE = 1024;
+    
+    // Index queries are short but must not queue behind the storage walks
+    // that keep the shared pool busy
+    private static final ExecutorService queryExecutor = Executors.newSingleThreadExecutor();
+    
     // UI Components
     private Toolbar toolbar;
     private TextView tvCurrentPath;
@@ -51,21 +79,46 @@ public class FileBrowserActivity extends AppCompatActivity implements
     private FileListAdapter fileListAdapter;
     private List<FileItem> currentFileList = new ArrayList<>();
     private String currentPath;
-    private boolean showHiddenFiles = false;
-    private int sortType = 0; // 0: Name, 1: Size, 2: Date, 3: Type
+    private final DirectoryViewModel viewModel = new DirectoryViewModel();
     
     // Threading
-    private ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private DirectoryLoader directoryLoader;
+    private FolderSizeEngine.Task folderSizeTask;
+    private DiskUsageIndex.Scan usageScan;
+    private FileNameIndex.Scan nameIndexScan;
+    private ContentIndex.Scan contentIndexScan;
+    // A content search waiting for the first index pass; main thread only
+    private String pendingContentQuery;
     private Handler mainHandler = new Handler(Looper.getMainLooper());
     
     // Selection mode
     private boolean isSelectionMode = false;
-    private List<FileItem> selectedItems = new ArrayList<>();
+    
+    // Set while the list shows search results instead of currentPath
+    private String searchQuery;
+    private FileCategory searchCategory;
+    // Set while the list shows the recent files instead of currentPath; the
+    // browser's sort order is put back when it leaves
+    private boolean recentMode;
+    private int sortTypeBeforeRecent;
+    private boolean descendingBeforeRecent;
+    
+    // Set while the list shows duplicate groups of currentPath, each group's
+    // files next to each other with the copy to keep first
+    private List<DuplicateFinder.Group> duplicateGroups;
+    private DuplicateFinder.Task duplicateTask;
+    private LiveSearch.Search liveSearch;
+    
+    // View mode; both modes recycle through one pool
+    private boolean gridMode = false;
+    private final RecyclerView.RecycledViewPool viewPool = new RecyclerView.RecycledViewPool();
+    private RecyclerView.ItemDecoration listDecoration;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_file_browser);
+        directoryLoader = new DirectoryLoader(this);
         
         initializeViews();
         setupToolbar();
@@ -90,8 +143,9 @@ public class FileBrowserActivity extends AppCompatActivity implements
                     }
                     break;
                 case FileUtils.PATH_RECENT_FILES:
-                    // For recent files, we'll show a special view
+                    // Back from the recent view goes to the storage root
                     currentPath = Environment.getExternalStorageDirectory().getAbsolutePath();
+                    recentMode = true;
                     break;
                 default:
                     currentPath = Environment.getExternalStorageDirectory().getAbsolutePath();
@@ -100,7 +154,16 @@ public class FileBrowserActivity extends AppCompatActivity implements
             currentPath = Environment.getExternalStorageDirectory().getAbsolutePath();
         }
         
-        loadDirectory(currentPath);
+        OperationScheduler.getInstance().addListener(operationListener);
+        if (recentMode) {
+            showRecentFiles();
+        } else {
+            loadDirectory(currentPath);
+        }
+        
+        // Searches use the saved index at once; the refresh catches up behind them
+        nameIndexScan = FileNameIndex.getInstance(getApplicationContext())
+                .refresh(FileUtils.getExternalStoragePaths(this), null);
     }
     
     private void initializeViews() {
@@ -132,12 +195,16 @@ public class FileBrowserActivity extends AppCompatActivity implements
     }
     
     private void setupRecyclerView() {
+        // Items never change the RecyclerView's own size
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setRecycledViewPool(viewPool);
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
         fileListAdapter = new FileListAdapter(this, currentFileList, this);
         recyclerView.setAdapter(fileListAdapter);
         
         // Add item decoration for borders
-        recyclerView.addItemDecoration(new FileItemDecoration(this));
+        listDecoration = new FileItemDecoration(this);
+        recyclerView.addItemDecoration(listDecoration);
     }
     
     private void setupBottomMenu() {
@@ -156,6 +223,10 @@ public class FileBrowserActivity extends AppCompatActivity implements
         btnBack.setOnClickListener(v -> navigateUp());
         btnHome.setOnClickListener(v -> navigateToHome());
         btnSelect.setOnClickListener(v -> toggleSelectionMode());
+        btnSelect.setOnLongClickListener(v -> {
+            showSelectionDialog();
+            return true;
+        });
         btnMenu.setOnClickListener(v -> toggleOperationMenu());
         
         // Operation buttons
@@ -166,77 +237,107 @@ public class FileBrowserActivity extends AppCompatActivity implements
         btnProperties.setOnClickListener(v -> showProperties());
     }
     
-    @SuppressLint("SetTextI18n")
     private void loadDirectory(String path) {
+        loadDirectory(path, false);
+    }
+    
+    private void loadDirectory(String path, boolean forceReload) {
+        loadDirectory(path, forceReload, false);
+    }
+    
+    // rescanSizes also recounts folder totals whose directories look unchanged;
+    // only an explicit refresh asks for it, since it walks the whole subtree
+    @SuppressLint("SetTextI18n")
+    private void loadDirectory(String path, boolean forceReload, boolean rescanSizes) {
+        boolean leavingResults = isShowingResults();
+        cancelFolderSize();
+        cancelUsageScan();
+        cancelSearch();
+        cancelRecentFiles();
+        cancelDuplicates();
         progressBar.setVisibility(View.VISIBLE);
-        recyclerView.setVisibility(View.GONE);
+        SortEngine.Order order = viewModel.getOrder();
         
-        executorService.execute(() -> {
-            List<FileItem> files = FileUtils.getFilesInDirectory(path);
-            
-            // Apply sorting
-            sortFileList(files);
+        // Reloading the folder on screen collects the new listing and diffs it
+        // against the rows shown, instead of clearing and streaming it again.
+        // Results shown in its place are not the folder, so leaving them
+        // always restores the listing, path and title.
+        List<FileItem> reloaded = !leavingResults && path.equals(currentPath) && !currentFileList.isEmpty()
+                ? new ArrayList<>() : null;
+        
+        // Supersedes any load still in flight; its late results are dropped
+        directoryLoader.load(path, forceReload, order, new DirectoryLoader.Callback() {
+            @Override
+            public void onListingStarted(String path) {
+                if (reloaded == null) {
+                    viewModel.reset(path);
+                    showListing(path);
+                }
+            }
             
-            // Update storage info
-            String storageInfo = FileUtils.getStorageInfo(path);
+            @Override
+            public void onChunk(String path, List<FileItem> sortedChunk) {
+                if (reloaded != null) {
+                    reloaded.addAll(sortedChunk);
+                } else {
+                    mergeChunk(sortedChunk, order);
+                }
+            }
             
-            mainHandler.post(() -> {
-                currentPath = path;
-                currentFileList.clear();
-                currentFileList.addAll(files);
-                
-                tvCurrentPath.setText(path);
+            @Override
+            public void onLoadFinished(String path, String storageInfo) {
+                if (reloaded != null) {
+                    viewModel.setItems(path, reloaded);
+                    fileListAdapter.submitList(viewModel.getView(), null);
+                }
                 tvStorageInfo.setText(storageInfo);
-                
-                fileListAdapter.notifyDataSetChanged();
-                
                 progressBar.setVisibility(View.GONE);
-                recyclerView.setVisibility(View.VISIBLE);
                 swipeRefreshLayout.setRefreshing(false);
                 
-                updateToolbarTitle();
-            });
+                refreshFolderSizes(path, rescanSizes);
+            }
         });
     }
     
-    private void sortFileList(List<FileItem> files) {
-        switch (sortType) {
-            case 0: // Name
-                Collections.sort(files, (f1, f2) -> {
-                    if (f1.isDirectory() != f2.isDirectory()) {
-                        return f1.isDirectory() ? -1 : 1;
-                    }
-                    return f1.getName().compareToIgnoreCase(f2.getName());
-                });
-                break;
-                
-            case 1: // Size
-                Collections.sort(files, (f1, f2) -> {
-                    if (f1.isDirectory() != f2.isDirectory()) {
-                        return f1.isDirectory() ? -1 : 1;
-                    }
-                    return Long.compare(f2.getSize(), f1.getSize());
-                });
-                break;
-                
-            case 2: // Date
-                Collections.sort(files, (f1, f2) -> {
-                    if (f1.isDirectory() != f2.isDirectory()) {
-                        return f1.isDirectory() ? -1 : 1;
-                    }
-                    return Long.compare(f2.getLastModified(), f1.getLastModified());
-                });
-                break;
-                
-            case 3: // Type
-                Collections.sort(files, (f1, f2) -> {
-                    if (f1.isDirectory() != f2.isDirectory()) {
-                        return f1.isDirectory() ? -1 : 1;
-                    }
-                    return f1.getExtension().compareToIgnoreCase(f2.getExtension());
-                });
-                break;
+    // Chunks arrive sorted by the order their load or search started with. If
+    // the sort was changed since, the list already follows the new order, so
+    // the chunk is re-sorted to match before it is merged.
+    private void mergeChunk(List<FileItem> sortedChunk, SortEngine.Order chunkOrder) {
+        SortEngine.Order order = viewModel.getOrder();
+        List<FileItem> chunk = sortedChunk;
+        if (!order.equals(chunkOrder)) {
+            chunk = new ArrayList<>(sortedChunk);
+            SortEngine.sort(chunk, order);
         }
+        fileListAdapter.mergeSorted(viewModel.addChunk(chunk), order);
+    }
+    
+    // Folder rows show indexed totals right away; the incremental rescan then
+    // only lists directories whose mtime changed, unless forced to list them
+    // all. New totals can move rows in
+    // a size-sorted view, so the view is rebuilt and diffed rather than rebound.
+    private void refreshFolderSizes(String path, boolean force) {
+        DiskUsageIndex usageIndex = DiskUsageIndex.getInstance(getApplicationContext());
+        usageScan = usageIndex.refresh(path, force, scan -> {
+            if (scan.isCancelled()) return;
+            mainHandler.post(() -> {
+                if (!path.equals(currentPath) || scan != usageScan) return;
+                
+                usageIndex.applyTo(viewModel.getItems());
+                viewModel.invalidateSizes();
+                fileListAdapter.submitList(viewModel.getView(), null);
+            });
+        });
+    }
+    
+    private void showListing(String path) {
+        currentPath = path;
+        fileListAdapter.clear();
+        
+        tvCurrentPath.setText(path);
+        recyclerView.setVisibility(View.VISIBLE);
+        
+        updateToolbarTitle();
     }
     
     private void updateToolbarTitle() {
@@ -248,7 +349,16 @@ public class FileBrowserActivity extends AppCompatActivity implements
         toolbar.setTitle(title);
     }
     
+    // True while search, recent or duplicate results replace the listing
+    private boolean isShowingResults() {
+        return searchQuery != null || recentMode || duplicateGroups != null;
+    }
+    
     private void navigateUp() {
+        if (isShowingResults()) {
+            loadDirectory(currentPath);
+            return;
+        }
         File currentDir = new File(currentPath);
         File parentDir = currentDir.getParentFile();
         
@@ -276,11 +386,51 @@ public class FileBrowserActivity extends AppCompatActivity implements
         } else {
             btnSelect.setImageResource(R.drawable.ic_select);
             fileListAdapter.setSelectionMode(false);
-            selectedItems.clear();
             operationMenu.setVisibility(View.GONE);
         }
+    }
+    
+    private void showSelectionDialog() {
+        List<String> options = new ArrayList<>();
+        options.add(getString(R.string.select_all));
+        options.add(getString(R.string.invert_selection));
+        options.add(getString(R.string.deselect_all));
+        if (duplicateGroups != null) {
+            options.add(getString(R.string.select_duplicates));
+        }
         
-        fileListAdapter.notifyDataSetChanged();
+        new AlertDialog.Builder(this)
+                .setItems(options.toArray(new String[0]), (dialog, which) -> {
+                    if (!isSelectionMode) {
+                        toggleSelectionMode();
+                    }
+                    if (which == 0) {
+                        fileListAdapter.selectAll();
+                    } else if (which == 1) {
+                        fileListAdapter.invertSelection();
+                    } else if (which == 2) {
+                        fileListAdapter.clearSelection();
+                    } else {
+                        selectDuplicates();
+                    }
+                })
+                .show();
+    }
+    
+    // Every copy but the oldest of each group, ready for the delete button
+    private void selectDuplicates() {
+        Set<FileItem> extraCopies = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (DuplicateFinder.Group group : duplicateGroups) {
+            List<FileItem> items = group.getItems();
+            extraCopies.addAll(items.subList(1, items.size()));
+        }
+        
+        fileListAdapter.clearSelection();
+        for (int i = 0; i < currentFileList.size(); i++) {
+            if (extraCopies.contains(currentFileList.get(i))) {
+                fileListAdapter.toggleSelection(i);
+            }
+        }
     }
     
     private void toggleOperationMenu() {
@@ -293,69 +443,200 @@ public class FileBrowserActivity extends AppCompatActivity implements
     
     // File operation methods
     private void copySelectedFiles() {
-        if (selectedItems.isEmpty()) {
+        if (fileListAdapter.getSelection().isEmpty()) {
             Toast.makeText(this, "No files selected", Toast.LENGTH_SHORT).show();
             return;
         }
         
-        // Show destination picker dialog
-        // Implementation would go here
-        Toast.makeText(this, "Copy " + selectedItems.size() + " files", Toast.LENGTH_SHORT).show();
+        List<File> sources = getSelectedFiles();
+        showPathDialog(R.string.copy, R.string.enter_destination, currentPath, destination ->
+                submitOperation(OperationScheduler.getInstance().copy(sources, new File(destination))));
     }
     
     private void moveSelectedFiles() {
-        if (selectedItems.isEmpty()) {
+        if (fileListAdapter.getSelection().isEmpty()) {
             Toast.makeText(this, "No files selected", Toast.LENGTH_SHORT).show();
             return;
         }
         
-        Toast.makeText(this, "Move " + selectedItems.size() + " files", Toast.LENGTH_SHORT).show();
+        List<File> sources = getSelectedFiles();
+        showPathDialog(R.string.move, R.string.enter_destination, currentPath, destination ->
+                submitOperation(OperationScheduler.getInstance().move(sources, new File(destination))));
     }
     
     private void deleteSelectedFiles() {
-        if (selectedItems.isEmpty()) {
+        if (fileListAdapter.getSelection().isEmpty()) {
             Toast.makeText(this, "No files selected", Toast.LENGTH_SHORT).show();
             return;
         }
         
-        // Show confirmation dialog
-        // Implementation would go here
-        Toast.makeText(this, "Delete " + selectedItems.size() + " files", Toast.LENGTH_SHORT).show();
+        List<File> sources = getSelectedFiles();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.delete)
+                .setMessage(getString(R.string.confirm_delete) + "\n" + sources.size() + " items")
+                .setPositiveButton(R.string.delete, (d, which) ->
+                        submitOperation(OperationScheduler.getInstance().delete(sources)))
+                .setNegativeButton(R.string.btn_cancel, null)
+                .show();
     }
     
     private void renameSelectedFile() {
-        if (selectedItems.size() != 1) {
+        if (fileListAdapter.getSelection().count() != 1) {
             Toast.makeText(this, "Select exactly one file to rename", Toast.LENGTH_SHORT).show();
             return;
         }
         
-        // Show rename dialog
-        // Implementation would go here
-        Toast.makeText(this, "Rename file", Toast.LENGTH_SHORT).show();
+        FileItem item = fileListAdapter.getSelectedItems().get(0);
+        showPathDialog(R.string.rename, R.string.enter_new_name, item.getName(), newName -> {
+            if (newName.contains(File.separator)) {
+                Toast.makeText(this, R.string.operation_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            submitOperation(OperationScheduler.getInstance().rename(new File(item.getPath()), newName));
+        });
     }
     
+    private List<File> getSelectedFiles() {
+        List<File> files = new ArrayList<>();
+        for (FileItem item : fileListAdapter.getSelectedItems()) {
+            files.add(new File(item.getPath()));
+        }
+        return files;
+    }
+    
+    private void showPathDialog(int titleRes, int messageRes, String initial, Consumer<String> onConfirm) {
+        EditText input = new EditText(this);
+        input.setSingleLine(true);
+        input.setText(initial);
+        input.selectAll();
+        
+        new AlertDialog.Builder(this)
+                .setTitle(titleRes)
+                .setMessage(messageRes)
+                .setView(input)
+                .setPositiveButton(R.string.btn_ok, (d, which) -> {
+                    String value = input.getText().toString().trim();
+                    if (!value.isEmpty()) {
+                        onConfirm.accept(value);
+                    }
+                })
+                .setNegativeButton(R.string.btn_cancel, null)
+                .show();
+    }
+    
+    // The scheduler runs the job; the service keeps the process alive until it is done
+    private void submitOperation(OperationScheduler.Job job) {
+        FileOperationService.start(this);
+        if (isSelectionMode) {
+            toggleSelectionMode();
+        }
+        Toast.makeText(this, job.getType() + ": " + job.getSources().size() + " items", Toast.LENGTH_SHORT).show();
+    }
+    
+    private final OperationScheduler.Listener operationListener = new OperationScheduler.Listener() {
+        @Override
+        public void onProgress(OperationScheduler.Progress progress) {
+        }
+        
+        @Override
+        public void onJobComplete(OperationScheduler.Job job, OperationResult result) {
+            mainHandler.post(() -> {
+                String message = result.isSuccess()
+                        ? getString(R.string.operation_complete)
+                        : getString(R.string.operation_failed) + " (" + result.getFailures().size() + ")";
+                Toast.makeText(FileBrowserActivity.this, message, Toast.LENGTH_SHORT).show();
+                // Results stay on screen and are run again, since the job may
+                // have moved or deleted some of them; the recent list follows
+                // jobs by itself
+                if (searchQuery != null) {
+                    searchFiles(searchQuery, searchCategory);
+                } else if (duplicateGroups != null) {
+                    findDuplicates();
+                } else if (!recentMode) {
+                    loadDirectory(currentPath, true);
+                }
+            });
+        }
+    };
+    
     private void showProperties() {
-        if (selectedItems.isEmpty()) {
+        if (fileListAdapter.getSelection().isEmpty()) {
             Toast.makeText(this, "No files selected", Toast.LENGTH_SHORT).show();
             return;
         }
         
-        // Show properties dialog
-        // Implementation would go here
-        Toast.makeText(this, "Show properties", Toast.LENGTH_SHORT).show();
+        cancelFolderSize();
+        
+        List<FileItem> selectedItems = fileListAdapter.getSelectedItems();
+        String header;
+        if (selectedItems.size() == 1) {
+            FileItem item = selectedItems.get(0);
+            header = getString(R.string.prop_name) + " " + item.getName() + "\n"
+                    + getString(R.string.prop_path) + " " + item.getPath() + "\n"
+                    + getString(R.string.prop_modified) + " " + FileUtils.formatDate(item.getLastModified()) + "\n";
+        } else {
+            header = selectedItems.size() + " items\n";
+        }
+        
+        // Start from the indexed totals so the dialog is useful immediately
+        String sizeText = getString(R.string.prop_size) + " Calculating...";
+        FileItem first = selectedItems.get(0);
+        if (selectedItems.size() == 1 && first.isDirectory() && first.getFileCount() >= 0) {
+            sizeText = getString(R.string.prop_size) + " " + FileUtils.formatFileSize(first.getSize())
+                    + "\n" + first.getFileCount() + " files (updating...)";
+        }
+        
+        AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.properties)
+                .setMessage(header + sizeText)
+                .setPositiveButton(R.string.btn_ok, null)
+                .setOnDismissListener(d -> cancelFolderSize())
+                .show();
+        
+        List<File> roots = new ArrayList<>();
+        for (FileItem item : selectedItems) {
+            roots.add(new File(item.getPath()));
+        }
+        
+        folderSizeTask = FolderSizeEngine.calculate(roots, new FolderSizeEngine.Listener() {
+            @Override
+            public void onProgress(FolderSizeEngine.SizeResult partial) {
+                if (partial.isCancelled()) return;
+                mainHandler.post(() -> dialog.setMessage(header + formatSizeResult(partial) + "..."));
+            }
+            
+            @Override
+            public void onComplete(FolderSizeEngine.SizeResult result) {
+                if (result.isCancelled()) return;
+                mainHandler.post(() -> dialog.setMessage(header + formatSizeResult(result)));
+            }
+        });
+    }
+    
+    private String formatSizeResult(FolderSizeEngine.SizeResult result) {
+        return getString(R.string.prop_size) + " " + FileUtils.formatFileSize(result.getBytes())
+                + "\n" + result.getFiles() + " files, " + result.getDirectories() + " folders";
+    }
+    
+    private void cancelFolderSize() {
+        if (folderSizeTask != null) {
+            folderSizeTask.cancel();
+            folderSizeTask = null;
+        }
+    }
+    
+    private void cancelUsageScan() {
+        if (usageScan != null) {
+            usageScan.cancel();
+            usageScan = null;
+        }
     }
     
     // File click listeners
     @Override
     public void onFileClick(FileItem fileItem, int position) {
         if (isSelectionMode) {
-            // Toggle selection
-            if (selectedItems.contains(fileItem)) {
-                selectedItems.remove(fileItem);
-            } else {
-                selectedItems.add(fileItem);
-            }
-            fileListAdapter.notifyItemChanged(position);
+            fileListAdapter.toggleSelection(position);
         } else {
             // Open file or directory
             if (fileItem.isDirectory()) {
@@ -370,18 +651,27 @@ public class FileBrowserActivity extends AppCompatActivity implements
     public void onFileLongClick(FileItem fileItem, int position) {
         if (!isSelectionMode) {
             toggleSelectionMode();
-            selectedItems.add(fileItem);
-            fileListAdapter.notifyItemChanged(position);
+            fileListAdapter.toggleSelection(position);
+        } else {
+            // Long press in selection mode extends from the last toggled row
+            fileListAdapter.selectRangeTo(position);
         }
     }
     
     private void openFile(FileItem fileItem) {
+        // The first bytes decide the MIME type, so extension-less and
+        // mislabelled files still open in the right app
+        ContentSniffer.getInstance().request(fileItem, (item, detection) -> {
+            if (isDestroyed()) return;
+            startViewer(item, ContentSniffer.resolveMimeType(item, detection));
+        });
+    }
+    
+    private void startViewer(FileItem fileItem, String mimeType) {
         // Use Android's default intent to open file
         Intent intent = new Intent(Intent.ACTION_VIEW);
         File file = new File(fileItem.getPath());
         
-        // Get MIME type
-        String mimeType = FileTypeDetector.getMimeType(fileItem.getExtension());
         if (mimeType == null) {
             mimeType = "*/*";
         }
@@ -410,11 +700,20 @@ public class FileBrowserActivity extends AppCompatActivity implements
         if (id == android.R.id.home) {
             navigateUp();
             return true;
+        } else if (id == R.id.menu_search) {
+            showSearchDialog();
+            return true;
+        } else if (id == R.id.menu_search_content) {
+            showPathDialog(R.string.menu_search_content, R.string.search_content_hint, "", this::searchContents);
+            return true;
+        } else if (id == R.id.menu_find_duplicates) {
+            findDuplicates();
+            return true;
         } else if (id == R.id.menu_new_folder) {
             createNewFolder();
             return true;
         } else if (id == R.id.menu_refresh) {
-            loadDirectory(currentPath);
+            loadDirectory(currentPath, true, true);
             return true;
         } else if (id == R.id.menu_sort) {
             showSortDialog();
@@ -433,28 +732,353 @@ public class FileBrowserActivity extends AppCompatActivity implements
         return super.onOptionsItemSelected(item);
     }
     
+    // A type filter is optional; with one, an empty query lists every file of that type
+    private void showSearchDialog() {
+        EditText input = new EditText(this);
+        input.setSingleLine(true);
+        input.setHint(R.string.search_hint);
+        input.setText(searchQuery);
+        input.selectAll();
+        
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_search)
+                .setView(input)
+                .setPositiveButton(R.string.menu_search, (d, which) -> {
+                    String query = input.getText().toString().trim();
+                    if (!query.isEmpty()) {
+                        searchFiles(query, null);
+                    }
+                })
+                .setNeutralButton(R.string.search_by_type, (d, which) ->
+                        showSearchTypeDialog(input.getText().toString().trim()))
+                .setNegativeButton(R.string.btn_cancel, null)
+                .show();
+    }
+    
+    private void showSearchTypeDialog(String query) {
+        FileCategory[] categories = FileCategory.values();
+        String[] names = new String[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            String name = categories[i].name().toLowerCase(Locale.ROOT);
+            names[i] = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        }
+        
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.search_by_type)
+                .setItems(names, (d, which) -> searchFiles(query, categories[which]))
+                .show();
+    }
+    
+    // Plain name searches are answered by the name index once it is ready.
+    // Before that, and for type filters, the tree is walked and matches
+    // stream into the list while the walk goes on.
+    @SuppressLint("SetTextI18n")
+    private void searchFiles(String query, FileCategory category) {
+        cancelFolderSize();
+        cancelUsageScan();
+        cancelSearch();
+        cancelRecentFiles();
+        cancelDuplicates();
+        directoryLoader.cancel();
+        progressBar.setVisibility(View.VISIBLE);
+        searchQuery = query;
+        searchCategory = category;
+        
+        viewModel.reset(currentPath);
+        fileListAdapter.clear();
+        tvCurrentPath.setText(getString(R.string.search_results,
+                category != null ? category.name().toLowerCase(Locale.ROOT) + ": " + query : query));
+        tvStorageInfo.setText("");
+        boolean includeHidden = viewModel.isShowHidden();
+        FileNameIndex nameIndex = FileNameIndex.getInstance(getApplicationContext());
+        
+        if (category == null && nameIndex.isReady()) {
+            queryExecutor.execute(() -> {
+                FileNameIndex.Result result = nameIndex.search(query, false, includeHidden, MAX_SEARCH_RESULTS);
+                mainHandler.post(() -> {
+                    if (!query.equals(searchQuery) || liveSearch != null) return;
+                    
+                    viewModel.setItems(currentPath, result.getItems());
+                    fileListAdapter.setItems(viewModel.getView());
+                    tvStorageInfo.setText(result.getItems().size() + " found");
+                    progressBar.setVisibility(View.GONE);
+                });
+            });
+            return;
+        }
+        
+        LiveSearch.Filter filter = new LiveSearch.Filter();
+        filter.setIncludeHidden(includeHidden);
+        if (category != null) {
+            filter.setCategories(EnumSet.of(category));
+        }
+        SortEngine.Order order = viewModel.getOrder();
+        liveSearch = LiveSearch.start(FileUtils.getExternalStoragePaths(this), query, filter,
+                MAX_SEARCH_RESULTS, order, new LiveSearch.Listener() {
+            @Override
+            public void onResults(LiveSearch.Search search, List<FileItem> sortedBatch) {
+                if (search != liveSearch) return;
+                mergeChunk(sortedBatch, order);
+                tvStorageInfo.setText(viewModel.getItems().size() + " found");
+            }
+            
+            @Override
+            public void onComplete(LiveSearch.Search search, LiveSearch.Summary summary) {
+                if (search != liveSearch) return;
+                tvStorageInfo.setText(summary.getMatches() + (summary.isLimitReached() ? "+" : "") + " found");
+                progressBar.setVisibility(View.GONE);
+            }
+        });
+    }
+    
+    // The first content search of a session starts the index refresh. A saved
+    // index answers right away; without one the search waits for the pass.
+    private void searchContents(String query) {
+        ContentIndex contentIndex = ContentIndex.getInstance(getApplicationContext());
+        progressBar.setVisibility(View.VISIBLE);
+        if (contentIndexScan == null) {
+            contentIndexScan = contentIndex.refresh(FileUtils.getExternalStoragePaths(this), scan ->
+                    mainHandler.post(() -> {
+                        String pending = pendingContentQuery;
+                        pendingContentQuery = null;
+                        if (pending != null && !scan.isCancelled()) {
+                            searchContents(pending);
+                        }
+                    }));
+        }
+        
+        queryExecutor.execute(() -> {
+            boolean ready = contentIndex.isReady();
+            ContentIndex.Result result = ready ? contentIndex.search(query, MAX_CONTENT_RESULTS) : null;
+            mainHandler.post(() -> {
+                if (isDestroyed()) return;
+                if (result == null) {
+                    // The pass may have finished since; then search again now
+                    if (contentIndex.isReady()) {
+                        searchContents(query);
+                    } else {
+                        pendingContentQuery = query;
+                        Toast.makeText(this, R.string.search_content_indexing, Toast.LENGTH_SHORT).show();
+                    }
+                    return;
+                }
+                progressBar.setVisibility(View.GONE);
+                showContentResults(result);
+            });
+        });
+    }
+    
+    private void showContentResults(ContentIndex.Result result) {
+        List<ContentIndex.Hit> hits = result.getHits();
+        if (hits.isEmpty()) {
+            Toast.makeText(this, R.string.search_content_none, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        String[] rows = new String[hits.size()];
+        for (int i = 0; i < rows.length; i++) {
+            ContentIndex.Hit hit = hits.get(i);
+            StringBuilder row = new StringBuilder(hit.getItem().getName());
+            for (ContentIndex.Snippet snippet : hit.getSnippets()) {
+                row.append('\n').append(snippet.getLineNumber()).append(": ").append(snippet.getText());
+            }
+            rows[i] = row.toString();
+        }
+        
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.search_results, result.getQuery()))
+                .setItems(rows, (d, which) -> openFile(hits.get(which).getItem()))
+                .setNegativeButton(R.string.btn_cancel, null)
+                .show();
+    }
+    
+    // The saved list shows at once; the seeding scan and later changes then
+    // update it in place through the listener
+    private void showRecentFiles() {
+        RecentFilesIndex recentFiles = RecentFilesIndex.getInstance(this);
+        recentMode = true;
+        sortTypeBeforeRecent = viewModel.getSortType();
+        descendingBeforeRecent = viewModel.isDescending();
+        viewModel.setSortType(DirectoryViewModel.SORT_DATE);
+        viewModel.setDescending(false); // DATE already puts the newest first
+        viewModel.reset(currentPath);
+        fileListAdapter.clear();
+        tvCurrentPath.setText(R.string.recent_files);
+        toolbar.setTitle(R.string.recent_files);
+        tvStorageInfo.setText("");
+        progressBar.setVisibility(View.VISIBLE);
+        
+        recentFiles.addListener(recentListener);
+        recentFiles.start(FileUtils.getExternalStoragePaths(this));
+        FolderSizeEngine.getPool().execute(() -> {
+            List<FileItem> items = recentFiles.getRecentFiles();
+            mainHandler.post(() -> recentListener.onRecentFilesChanged(items));
+        });
+    }
+    
+    private final RecentFilesIndex.Listener recentListener = new RecentFilesIndex.Listener() {
+        @Override
+        public void onRecentFilesChanged(List<FileItem> recentFiles) {
+            if (!recentMode) return;
+            viewModel.setItems(currentPath, recentFiles);
+            fileListAdapter.submitList(viewModel.getView(), null);
+            progressBar.setVisibility(View.GONE);
+        }
+    };
+    
+    private void cancelRecentFiles() {
+        if (recentMode) {
+            recentMode = false;
+            RecentFilesIndex.getInstance(this).removeListener(recentListener);
+            viewModel.setSortType(sortTypeBeforeRecent);
+            viewModel.setDescending(descendingBeforeRecent);
+        }
+    }
+    
+    // Groups stream in while larger files are still being hashed. Only the
+    // folder on screen and everything below it is searched, as the header
+    // says. The rows bypass the view model, whose sorting would split the
+    // groups, so sort and hidden changes are refused while they show.
+    @SuppressLint("SetTextI18n")
+    private void findDuplicates() {
+        cancelFolderSize();
+        cancelUsageScan();
+        cancelSearch();
+        cancelRecentFiles();
+        cancelDuplicates();
+        directoryLoader.cancel();
+        
+        List<DuplicateFinder.Group> groups = new ArrayList<>();
+        List<FileItem> rows = new ArrayList<>();
+        duplicateGroups = groups;
+        viewModel.reset(currentPath);
+        fileListAdapter.clear();
+        tvCurrentPath.setText(getString(R.string.duplicates_in, currentPath));
+        tvStorageInfo.setText("");
+        progressBar.setVisibility(View.VISIBLE);
+        
+        duplicateTask = DuplicateFinder.find(Collections.singletonList(currentPath), MIN_DUPLICATE_SIZE,
+                new DuplicateFinder.Listener() {
+            private long reclaimable;
+            
+            @Override
+            public void onGroup(DuplicateFinder.Task task, DuplicateFinder.Group group) {
+                if (task != duplicateTask) return;
+                groups.add(group);
+                rows.addAll(group.getItems());
+                reclaimable += group.getReclaimableBytes();
+                fileListAdapter.submitList(rows, null);
+                tvStorageInfo.setText(getString(R.string.duplicates_found, groups.size(),
+                        DisplayFormatter.formatSize(reclaimable)));
+            }
+            
+            @Override
+            public void onComplete(DuplicateFinder.Task task, DuplicateFinder.Summary summary) {
+                if (task != duplicateTask) return;
+                duplicateTask = null;
+                progressBar.setVisibility(View.GONE);
+                tvStorageInfo.setText(getString(R.string.duplicates_found, (int) summary.getGroups(),
+                        DisplayFormatter.formatSize(summary.getReclaimableBytes())));
+            }
+        });
+    }
+    
+    private void cancelDuplicates() {
+        duplicateGroups = null;
+        if (duplicateTask != null) {
+            duplicateTask.cancel();
+            duplicateTask = null;
+        }
+    }
+    
+    private void cancelSearch() {
+        searchQuery = null;
+        searchCategory = null;
+        if (liveSearch != null) {
+            liveSearch.cancel();
+            liveSearch = null;
+        }
+    }
+    
     private void createNewFolder() {
         // Implementation for creating new folder
         Toast.makeText(this, "Create new folder", Toast.LENGTH_SHORT).show();
     }
     
+    // Sorting works on the listing in memory; the folder is not read again
     private void showSortDialog() {
-        // Implementation for sort dialog
-        String[] sortOptions = {"Name", "Size", "Date", "Type"};
-        // Would typically show a dialog or bottom sheet
-        Toast.makeText(this, "Sort by dialog", Toast.LENGTH_SHORT).show();
+        if (duplicateGroups != null) {
+            Toast.makeText(this, "Duplicates stay grouped", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] sortOptions = {
+                getString(R.string.sort_name),
+                getString(R.string.sort_size),
+                getString(R.string.sort_date),
+                getString(R.string.sort_type)
+        };
+        
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_sort)
+                .setSingleChoiceItems(sortOptions, viewModel.getSortType(), (dialog, which) -> {
+                    if (viewModel.setSortType(which)) {
+                        fileListAdapter.setItems(viewModel.getView());
+                    }
+                    dialog.dismiss();
+                })
+                .setNeutralButton(R.string.sort_reverse, (dialog, which) -> {
+                    viewModel.setDescending(!viewModel.isDescending());
+                    fileListAdapter.setItems(viewModel.getView());
+                })
+                .show();
     }
     
+    // Switches the layout over the items already shown; nothing is reloaded
     private void toggleViewMode() {
-        // Toggle between list and grid view
-        Toast.makeText(this, "Toggle view mode", Toast.LENGTH_SHORT).show();
+        LinearLayoutManager current = (LinearLayoutManager) recyclerView.getLayoutManager();
+        int first = current != null ? current.findFirstVisibleItemPosition() : RecyclerView.NO_POSITION;
+        gridMode = !gridMode;
+        
+        fileListAdapter.setGridMode(gridMode);
+        if (gridMode) {
+            int columns = gridColumns();
+            // Item prefetch already fetches a whole row of cells ahead; the
+            // pool and view cache are sized in rows to match
+            GridLayoutManager layout = new GridLayoutManager(this, columns);
+            viewPool.setMaxRecycledViews(FileListAdapter.VIEW_TYPE_GRID, columns * GRID_POOL_ROWS);
+            // A row scrolled just off screen comes back without a rebind
+            recyclerView.setItemViewCacheSize(columns * 2);
+            recyclerView.removeItemDecoration(listDecoration);
+            recyclerView.setLayoutManager(layout);
+        } else {
+            recyclerView.setItemViewCacheSize(2);
+            recyclerView.addItemDecoration(listDecoration);
+            recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        }
+        
+        if (first != RecyclerView.NO_POSITION) {
+            recyclerView.scrollToPosition(first);
+        }
+    }
+    
+    private int gridColumns() {
+        float density = getResources().getDisplayMetrics().density;
+        int widthDp = (int) ((recyclerView.getWidth() - recyclerView.getPaddingLeft()
+                - recyclerView.getPaddingRight()) / density);
+        return Math.max(3, widthDp / GRID_CELL_MIN_DP);
     }
     
     private void toggleHiddenFiles() {
-        showHiddenFiles = !showHiddenFiles;
-        loadDirectory(currentPath);
+        if (duplicateGroups != null) {
+            Toast.makeText(this, "Duplicates stay grouped", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        boolean showHidden = !viewModel.isShowHidden();
+        viewModel.setShowHidden(showHidden);
+        // Only the hidden rows come or go, so a diff keeps the rest in place
+        fileListAdapter.submitList(viewModel.getView(), null);
         Toast.makeText(this, 
-            showHiddenFiles ? "Showing hidden files" : "Hiding hidden files", 
+            showHidden ? "Showing hidden files" : "Hiding hidden files", 
             Toast.LENGTH_SHORT).show();
     }
     
@@ -466,17 +1090,35 @@ public class FileBrowserActivity extends AppCompatActivity implements
     // Swipe refresh
     @Override
     public void onRefresh() {
-        loadDirectory(currentPath);
+        loadDirectory(currentPath, true, true);
     }
     
-    // Update selected items
-    public void updateSelectedItems(List<FileItem> items) {
-        this.selectedItems = items;
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            DirectoryCache.getInstance().clear();
+            ThumbnailLoader.getInstance(this).trimMemory();
+        }
     }
     
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        executorService.shutdown();
+        OperationScheduler.getInstance().removeListener(operationListener);
+        cancelFolderSize();
+        cancelUsageScan();
+        cancelSearch();
+        cancelRecentFiles();
+        cancelDuplicates();
+        if (nameIndexScan != null) {
+            nameIndexScan.cancel();
+        }
+        if (contentIndexScan != null) {
+            contentIndexScan.cancel();
+        }
+        directoryLoader.shutdown();
+        ContentSniffer.getInstance().logStats();
+        ThumbnailLoader.getInstance(this).logStats();
     }
 }
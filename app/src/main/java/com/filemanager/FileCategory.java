@@ -0,0 +1,30 @@
+package com.filemanager;
+
+// What a row looks like for each kind of file. Resolved once per FileItem
+// through FileTypeDetector's extension table and stored on the item.
+public enum FileCategory {
+    FOLDER(R.drawable.ic_folder, R.color.folder_color, R.drawable.bg_extension_folder),
+    IMAGE(R.drawable.ic_image, R.color.image_color, R.drawable.bg_extension_image),
+    DOCUMENT(R.drawable.ic_document, R.color.document_color, R.drawable.bg_extension_document),
+    PDF(R.drawable.ic_pdf, R.color.document_color, R.drawable.bg_extension_document),
+    AUDIO(R.drawable.ic_audio, R.color.audio_color, R.drawable.bg_extension_audio),
+    VIDEO(R.drawable.ic_video, R.color.video_color, R.drawable.bg_extension_video),
+    ARCHIVE(R.drawable.ic_archive, R.color.archive_color, R.drawable.bg_extension_archive),
+    CODE(R.drawable.ic_code, R.color.code_color, R.drawable.bg_extension_code),
+    APK(R.drawable.ic_apk, R.color.text_primary, R.drawable.bg_extension_default),
+    OTHER(R.drawable.ic_file, R.color.text_primary, R.drawable.bg_extension_default);
+    
+    private final int iconResource;
+    private final int colorResource;
+    private final int badgeBackground;
+    
+    FileCategory(int iconResource, int colorResource, int badgeBackground) {
+        this.iconResource = iconResource;
+        this.colorResource = colorResource;
+        this.badgeBackground = badgeBackground;
+    }
+    
+    public int getIconResource() { return iconResource; }
+    public int getColorResource() { return colorResource; }
+    public int getBadgeBackground() { return badgeBackground; }
+}
@@ -0,0 +1,547 @@
+package com.filemanager;
+
+import android.content.Context;
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Persistent index of every file and folder name below the storage roots,
+// for substring and prefix search without touching the disk. Names are kept
+// per directory, and a trigram table maps each trigram to the directories
+// with a name containing it, so a query only scans the few directories that
+// have all of its trigrams. Refreshes work like DiskUsageIndex: a directory
+// whose mtime is unchanged costs one stat, only changed ones are listed.
+public class FileNameIndex {
+    
+    private static final String TAG = "FileNameIndex";
+    private static final String INDEX_FILE = "file_names.idx";
+    private static final int VERSION = 1;
+    
+    // Marks the start of a name, so prefixes have trigrams of their own
+    private static final char START = '\u0001';
+    
+    private static FileNameIndex instance;
+    
+    public interface Listener {
+        // Runs on a pool thread once every root was refreshed or the scan was cancelled
+        void onComplete(Scan scan);
+    }
+    
+    private static class Node {
+        final String path;
+        final long lastModified;
+        final String[] fileNames;
+        final String[] childNames;
+        int id;
+        
+        Node(String path, long lastModified, String[] fileNames, String[] childNames) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.fileNames = fileNames;
+            this.childNames = childNames;
+        }
+    }
+    
+    public static class Scan {
+        private final List<String> roots;
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger rescanned = new AtomicInteger();
+        private final AtomicInteger reused = new AtomicInteger();
+        private final AtomicInteger pendingRoots;
+        private volatile boolean cancelled;
+        private volatile long elapsedNanos;
+        
+        Scan(List<String> roots) {
+            this.roots = roots;
+            this.pendingRoots = new AtomicInteger(roots.size());
+        }
+        
+        public void cancel() { cancelled = true; }
+        public boolean isCancelled() { return cancelled; }
+        public List<String> getRoots() { return roots; }
+        public int getRescannedDirectories() { return rescanned.get(); }
+        public int getReusedDirectories() { return reused.get(); }
+        public long getElapsedNanos() { return elapsedNanos; }
+        
+        @Override
+        public String toString() {
+            return "Scan{" +
+                    "roots=" + roots +
+                    ", rescanned=" + rescanned +
+                    ", reused=" + reused +
+                    ", elapsedMs=" + elapsedNanos / 1_000_000 +
+                    ", cancelled=" + cancelled +
+                    '}';
+        }
+    }
+    
+    public static class Result {
+        private final String query;
+        private final List<FileItem> items;
+        private final int candidateDirectories;
+        private final long lookupNanos;
+        private final long elapsedNanos;
+        
+        Result(String query, List<FileItem> items, int candidateDirectories, long lookupNanos, long elapsedNanos) {
+            this.query = query;
+            this.items = items;
+            this.candidateDirectories = candidateDirectories;
+            this.lookupNanos = lookupNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        public String getQuery() { return query; }
+        public List<FileItem> getItems() { return items; }
+        public int getCandidateDirectories() { return candidateDirectories; }
+        // Time spent in the index, without building the FileItems
+        public long getLookupNanos() { return lookupNanos; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "query='" + query + '\'' +
+                    ", matches=" + items.size() +
+                    ", candidates=" + candidateDirectories +
+                    ", lookupUs=" + lookupNanos / 1000 +
+                    ", elapsedUs=" + elapsedNanos / 1000 +
+                    '}';
+        }
+    }
+    
+    private final File indexFile;
+    // Guards nodes, byId, freeIds and grams; queries share the read lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final List<Node> byId = new ArrayList<>();
+    private final List<Integer> freeIds = new ArrayList<>();
+    private final PostingTable grams = new PostingTable();
+    private boolean loaded;
+    private volatile boolean ready;
+    private volatile Scan currentScan;
+    
+    public static synchronized FileNameIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new FileNameIndex(new File(context.getFilesDir(), INDEX_FILE));
+        }
+        return instance;
+    }
+    
+    FileNameIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+    
+    // Brings the index up to date with every root; the first call also loads
+    // the saved index, so searches work from the old state meanwhile
+    public Scan refresh(List<String> roots, Listener listener) {
+        Scan previous = currentScan;
+        if (previous != null) {
+            previous.cancel();
+        }
+        Scan scan = new Scan(new ArrayList<>(roots));
+        currentScan = scan;
+        
+        FolderSizeEngine.getPool().execute(() -> {
+            load();
+            for (String root : scan.roots) {
+                FolderSizeEngine.getPool().execute(new DirectoryTask(null, scan, Paths.get(root)) {
+                    @Override
+                    public void onCompletion(CountedCompleter<?> caller) {
+                        if (scan.pendingRoots.decrementAndGet() > 0) return;
+                        scan.elapsedNanos = System.nanoTime() - scan.startNanos;
+                        Log.d(TAG, scan + " " + FileNameIndex.this);
+                        if (!scan.isCancelled()) {
+                            ready = true;
+                            save();
+                        }
+                        if (listener != null) {
+                            listener.onComplete(scan);
+                        }
+                    }
+                });
+            }
+        });
+        return scan;
+    }
+    
+    private class DirectoryTask extends CountedCompleter<Void> {
+        private final Scan scan;
+        private final Path directory;
+        
+        DirectoryTask(DirectoryTask parent, Scan scan, Path directory) {
+            super(parent);
+            this.scan = scan;
+            this.directory = directory;
+        }
+        
+        @Override
+        public void compute() {
+            if (!scan.isCancelled()) {
+                Node node = index();
+                if (node != null) {
+                    for (String name : node.childNames) {
+                        addToPendingCount(1);
+                        new DirectoryTask(this, scan, directory.resolve(name)).fork();
+                    }
+                }
+            }
+            tryComplete();
+        }
+        
+        private Node index() {
+            String path = directory.toString();
+            long lastModified;
+            try {
+                lastModified = Files.getLastModifiedTime(directory, LinkOption.NOFOLLOW_LINKS).toMillis();
+            } catch (IOException | SecurityException e) {
+                removeSubtree(path);
+                return null;
+            }
+            
+            Node old;
+            lock.readLock().lock();
+            try {
+                old = nodes.get(path);
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (old != null && old.lastModified == lastModified) {
+                scan.reused.incrementAndGet();
+                return old;
+            }
+            
+            List<String> files = new ArrayList<>();
+            List<String> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    String name = entry.getFileName().toString();
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException | SecurityException e) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        children.add(name);
+                    } else {
+                        files.add(name);
+                    }
+                }
+            } catch (IOException | SecurityException e) {
+                // Keeping the old node would keep answering with stale names
+                Log.w(TAG, "Cannot read directory: " + path, e);
+                removeSubtree(path);
+                return null;
+            }
+            scan.rescanned.incrementAndGet();
+            
+            if (old != null) {
+                Set<String> current = new HashSet<>(children);
+                for (String name : old.childNames) {
+                    if (!current.contains(name)) {
+                        removeSubtree(directory.resolve(name).toString());
+                    }
+                }
+            }
+            Node node = new Node(path, lastModified, files.toArray(new String[0]), children.toArray(new String[0]));
+            put(node);
+            return node;
+        }
+    }
+    
+    // Swaps the node in, replacing the trigrams of the one it replaces
+    private void put(Node node) {
+        long[] keys = gramsOf(node);
+        lock.writeLock().lock();
+        try {
+            Node old = nodes.put(node.path, node);
+            if (old != null) {
+                node.id = old.id;
+                removeGrams(old);
+            } else {
+                node.id = freeIds.isEmpty() ? byId.size() : freeIds.remove(freeIds.size() - 1);
+                if (node.id == byId.size()) byId.add(null);
+            }
+            byId.set(node.id, node);
+            for (long key : keys) {
+                grams.add(key, node.id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    private void removeSubtree(String path) {
+        String prefix = path + File.separator;
+        lock.writeLock().lock();
+        try {
+            List<Node> removed = new ArrayList<>();
+            for (Node node : nodes.values()) {
+                if (node.path.equals(path) || node.path.startsWith(prefix)) {
+                    removed.add(node);
+                }
+            }
+            for (Node node : removed) {
+                nodes.remove(node.path);
+                removeGrams(node);
+                byId.set(node.id, null);
+                freeIds.add(node.id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    // Write lock held
+    private void removeGrams(Node node) {
+        for (long key : gramsOf(node)) {
+            grams.remove(key, node.id);
+        }
+    }
+    
+    // Distinct trigram keys of every name in the directory, sorted
+    private static long[] gramsOf(Node node) {
+        long[] keys = new long[64];
+        int count = 0;
+        for (String[] names : new String[][]{node.fileNames, node.childNames}) {
+            for (String name : names) {
+                int needed = count + name.length() + 1;
+                if (needed > keys.length) {
+                    keys = Arrays.copyOf(keys, Math.max(needed, keys.length * 2));
+                }
+                count = addGrams(name, true, keys, count);
+            }
+        }
+        
+        Arrays.sort(keys, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || keys[distinct - 1] != keys[i]) {
+                keys[distinct++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, distinct);
+    }
+    
+    // With anchored set, the text is read as START + text: a name yields its
+    // "^ab" trigram and "^a" bigram as well, so prefix queries are selective
+    private static int addGrams(String text, boolean anchored, long[] out, int count) {
+        int length = text.length() + (anchored ? 1 : 0);
+        if (anchored && length >= 2) {
+            out[count++] = key(START, fold(text.charAt(0)));
+        }
+        for (int i = 0; i + 3 <= length; i++) {
+            out[count++] = key(charAt(text, anchored, i), charAt(text, anchored, i + 1),
+                    charAt(text, anchored, i + 2));
+        }
+        return count;
+    }
+    
+    private static char charAt(String text, boolean anchored, int index) {
+        if (!anchored) return fold(text.charAt(index));
+        return index == 0 ? START : fold(text.charAt(index - 1));
+    }
+    
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+    
+    // Bit 48 or 49 tells bigrams from trigrams, so no key is ever 0
+    private static long key(char a, char b) {
+        return 1L << 48 | (long) a << 16 | b;
+    }
+    
+    private static long key(char a, char b, char c) {
+        return 2L << 48 | (long) a << 32 | (long) b << 16 | c;
+    }
+    
+    // Whether searches can answer from the index: it was loaded from disk or
+    // one full refresh finished. Until then LiveSearch walks the tree.
+    public boolean isReady() {
+        return ready;
+    }
+    
+    // Case-insensitive substring search, or prefix search with prefix set.
+    // Queries shorter than a trigram (and not prefixes) scan every name.
+    public Result search(String query, boolean prefix, boolean includeHidden, int limit) {
+        long start = System.nanoTime();
+        List<String[]> matches = new ArrayList<>();
+        int candidates = 0;
+        
+        lock.readLock().lock();
+        try {
+            int[] ids = candidates(query, prefix);
+            candidates = ids != null ? ids.length : byId.size();
+            int count = ids != null ? ids.length : byId.size();
+            for (int i = 0; i < count && matches.size() < limit; i++) {
+                Node node = byId.get(ids != null ? ids[i] : i);
+                if (node == null) continue;
+                if (!includeHidden && node.path.contains(File.separator + ".")) continue;
+                collect(node, node.childNames, query, prefix, includeHidden, limit, matches);
+                collect(node, node.fileNames, query, prefix, includeHidden, limit, matches);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        long lookupNanos = System.nanoTime() - start;
+        
+        List<FileItem> items = new ArrayList<>(matches.size());
+        for (String[] match : matches) {
+            FileItem item = DirectoryLister.createFileItem(Paths.get(match[0], match[1]), match[0]);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        
+        Result result = new Result(query, items, candidates, lookupNanos, System.nanoTime() - start);
+        Log.d(TAG, result.toString());
+        return result;
+    }
+    
+    // Sorted ids of the directories that have every trigram of the query, or
+    // null if the query is too short to narrow anything down
+    private int[] candidates(String query, boolean prefix) {
+        long[] keys = new long[query.length() + 2];
+        int count = addGrams(query, prefix, keys, 0);
+        if (prefix && query.length() > 1) {
+            // The "^a" bigram is implied by the "^ab" trigram
+            System.arraycopy(keys, 1, keys, 0, --count);
+        }
+        if (count == 0) return null;
+        
+        return grams.intersect(keys, count);
+    }
+    
+    private static void collect(Node node, String[] names, String query, boolean prefix,
+                                boolean includeHidden, int limit, List<String[]> matches) {
+        for (String name : names) {
+            if (matches.size() >= limit) return;
+            if (!includeHidden && name.startsWith(".")) continue;
+            boolean match = prefix
+                    ? name.regionMatches(true, 0, query, 0, query.length())
+                    : LiveSearch.containsIgnoreCase(name, query);
+            if (match) {
+                matches.add(new String[]{node.path, name});
+            }
+        }
+    }
+    
+    private void load() {
+        lock.writeLock().lock();
+        try {
+            if (loaded) return;
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (!indexFile.exists()) return;
+        
+        long start = System.nanoTime();
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != VERSION) return;
+            
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                String[] fileNames = readNames(in);
+                String[] childNames = readNames(in);
+                put(new Node(path, lastModified, fileNames, childNames));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading index, starting empty", e);
+            removeSubtree("");
+            return;
+        }
+        ready = count > 0;
+        Log.d(TAG, "Loaded " + count + " directories in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+    
+    private static String[] readNames(DataInputStream in) throws IOException {
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+    
+    private synchronized void save() {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        List<Node> snapshot;
+        lock.readLock().lock();
+        try {
+            snapshot = new ArrayList<>(nodes.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+        
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (Node node : snapshot) {
+                out.writeUTF(node.path);
+                out.writeLong(node.lastModified);
+                writeNames(out, node.fileNames);
+                writeNames(out, node.childNames);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving index", e);
+            tempFile.delete();
+            return;
+        }
+        
+        if (!tempFile.renameTo(indexFile)) {
+            Log.e(TAG, "Error replacing index file: " + indexFile);
+        }
+    }
+    
+    private static void writeNames(DataOutputStream out, String[] names) throws IOException {
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            long names = 0;
+            for (Node node : nodes.values()) {
+                names += node.fileNames.length + node.childNames.length;
+            }
+            return "FileNameIndex{directories=" + nodes.size() + ", names=" + names
+                    + ", postingKb=" + grams.sizeBytes() / 1024 + ", file='" + indexFile + "'}";
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package com.filemanager;
 
 import com.filemanager.models.FileItem;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
 public class FileTypeDetector {
     
@@ -36,227 +40,123 @@ public class FileTypeDetector {
     public static final int BG_EXTENSION_CODE = R.drawable.bg_extension_code;
     public static final int BG_EXTENSION_DEFAULT = R.drawable.bg_extension_default;
     
-    public static int getIconResource(FileItem fileItem) {
-        if (fileItem.isDirectory()) {
-            return ICON_FOLDER;
-        }
-        
-        String extension = fileItem.getExtension().toLowerCase();
-        
-        // Image files
-        if (isImageFile(extension)) {
-            return ICON_IMAGE;
-        }
-        
-        // Document files
-        if (isDocumentFile(extension)) {
-            if (extension.equals("pdf")) {
-                return ICON_PDF;
-            }
-            return ICON_DOCUMENT;
-        }
-        
-        // Audio files
-        if (isAudioFile(extension)) {
-            return ICON_AUDIO;
-        }
-        
-        // Video files
-        if (isVideoFile(extension)) {
-            return ICON_VIDEO;
-        }
-        
-        // Archive files
-        if (isArchiveFile(extension)) {
-            return ICON_ARCHIVE;
-        }
-        
-        // Code files
-        if (isCodeFile(extension)) {
-            return ICON_CODE;
-        }
-        
-        // APK files
-        if (extension.equals("apk")) {
-            return ICON_APK;
-        }
-        
-        return ICON_FILE;
-    }
+    // Immutable extension table; register() swaps in a new copy, so lookups
+    // never lock and never see a half-built map
+    private static volatile Map<String, ExtensionType> extensionTable = buildDefaultTable();
     
-    public static int getIconColor(FileItem fileItem) {
-        if (fileItem.isDirectory()) {
-            return COLOR_FOLDER;
-        }
-        
-        String extension = fileItem.getExtension().toLowerCase();
-        
-        if (isImageFile(extension)) {
-            return COLOR_IMAGE;
-        }
-        
-        if (isDocumentFile(extension)) {
-            return COLOR_DOCUMENT;
-        }
-        
-        if (isAudioFile(extension)) {
-            return COLOR_AUDIO;
-        }
-        
-        if (isVideoFile(extension)) {
-            return COLOR_VIDEO;
-        }
-        
-        if (isArchiveFile(extension)) {
-            return COLOR_ARCHIVE;
-        }
+    private static class ExtensionType {
+        final FileCategory category;
+        final String mimeType;
         
-        if (isCodeFile(extension)) {
-            return COLOR_CODE;
+        ExtensionType(FileCategory category, String mimeType) {
+            this.category = category;
+            this.mimeType = mimeType;
         }
-        
-        return COLOR_DEFAULT;
     }
     
-    public static int getExtensionBackground(String extension) {
-        if (extension == null || extension.isEmpty()) {
-            return BG_EXTENSION_DEFAULT;
-        }
-        
-        String ext = extension.toLowerCase();
-        
-        if (isImageFile(ext)) {
-            return BG_EXTENSION_IMAGE;
-        }
-        
-        if (isDocumentFile(ext)) {
-            return BG_EXTENSION_DOCUMENT;
-        }
-        
-        if (isAudioFile(ext)) {
-            return BG_EXTENSION_AUDIO;
-        }
-        
-        if (isVideoFile(ext)) {
-            return BG_EXTENSION_VIDEO;
-        }
-        
-        if (isArchiveFile(ext)) {
-            return BG_EXTENSION_ARCHIVE;
-        }
-        
-        if (isCodeFile(ext)) {
-            return BG_EXTENSION_CODE;
-        }
-        
-        return BG_EXTENSION_DEFAULT;
+    private static Map<String, ExtensionType> buildDefaultTable() {
+        Map<String, ExtensionType> table = new HashMap<>();
+        
+        // Categories first; the lists are disjoint, so the order doesn't matter
+        put(table, FileCategory.CODE, "java", "kt", "xml", "html", "htm", "css", "js", "cpp", "c", "h",
+                "py", "php", "json", "sql", "sh", "bat", "gradle", "yml", "yaml");
+        put(table, FileCategory.ARCHIVE, "zip", "rar", "7z", "tar", "gz", "bz2", "xz", "iso", "jar");
+        put(table, FileCategory.VIDEO, "mp4", "avi", "mkv", "mov", "wmv", "flv", "webm", "m4v", "3gp");
+        put(table, FileCategory.AUDIO, "mp3", "wav", "ogg", "m4a", "flac", "aac", "wma", "mid", "midi");
+        put(table, FileCategory.DOCUMENT, "doc", "docx", "xls", "xlsx", "ppt", "pptx", "txt",
+                "rtf", "odt", "ods", "odp", "md", "csv");
+        put(table, FileCategory.PDF, "pdf");
+        put(table, FileCategory.IMAGE, "jpg", "jpeg", "png", "gif", "bmp", "webp", "tiff", "svg");
+        put(table, FileCategory.APK, "apk");
+        
+        // Images
+        mime(table, "image/jpeg", "jpg", "jpeg");
+        mime(table, "image/png", "png");
+        mime(table, "image/gif", "gif");
+        mime(table, "image/bmp", "bmp");
+        mime(table, "image/webp", "webp");
+        
+        // Documents
+        mime(table, "application/pdf", "pdf");
+        mime(table, "application/msword", "doc", "docx");
+        mime(table, "application/vnd.ms-excel", "xls", "xlsx");
+        mime(table, "application/vnd.ms-powerpoint", "ppt", "pptx");
+        mime(table, "text/plain", "txt");
+        
+        // Audio
+        mime(table, "audio/mpeg", "mp3");
+        mime(table, "audio/wav", "wav");
+        mime(table, "audio/ogg", "ogg");
+        mime(table, "audio/mp4", "m4a");
+        
+        // Video
+        mime(table, "video/mp4", "mp4");
+        mime(table, "video/x-msvideo", "avi");
+        mime(table, "video/x-matroska", "mkv");
+        mime(table, "video/quicktime", "mov");
+        
+        // Archives
+        mime(table, "application/zip", "zip");
+        mime(table, "application/x-rar-compressed", "rar");
+        mime(table, "application/x-7z-compressed", "7z");
+        mime(table, "application/x-tar", "tar");
+        
+        return Collections.unmodifiableMap(table);
     }
     
-    public static String getMimeType(String extension) {
-        if (extension == null) return null;
-        
-        switch (extension.toLowerCase()) {
-            // Images
-            case "jpg":
-            case "jpeg":
-                return "image/jpeg";
-            case "png":
-                return "image/png";
-            case "gif":
-                return "image/gif";
-            case "bmp":
-                return "image/bmp";
-            case "webp":
-                return "image/webp";
-                
-            // Documents
-            case "pdf":
-                return "application/pdf";
-            case "doc":
-            case "docx":
-                return "application/msword";
-            case "xls":
-            case "xlsx":
-                return "application/vnd.ms-excel";
-            case "ppt":
-            case "pptx":
-                return "application/vnd.ms-powerpoint";
-            case "txt":
-                return "text/plain";
-                
-            // Audio
-            case "mp3":
-                return "audio/mpeg";
-            case "wav":
-                return "audio/wav";
-            case "ogg":
-                return "audio/ogg";
-            case "m4a":
-                return "audio/mp4";
-                
-            // Video
-            case "mp4":
-                return "video/mp4";
-            case "avi":
-                return "video/x-msvideo";
-            case "mkv":
-                return "video/x-matroska";
-            case "mov":
-                return "video/quicktime";
-                
-            // Archives
-            case "zip":
-                return "application/zip";
-            case "rar":
-                return "application/x-rar-compressed";
-            case "7z":
-                return "application/x-7z-compressed";
-            case "tar":
-                return "application/x-tar";
-                
-            default:
-                return null;
+    private static void put(Map<String, ExtensionType> table, FileCategory category, String... extensions) {
+        for (String extension : extensions) {
+            table.put(extension, new ExtensionType(category, null));
         }
     }
     
-    private static boolean isImageFile(String extension) {
-        String[] imageExtensions = {"jpg", "jpeg", "png", "gif", "bmp", "webp", "tiff", "svg"};
-        return contains(extension, imageExtensions);
+    private static void mime(Map<String, ExtensionType> table, String mimeType, String... extensions) {
+        for (String extension : extensions) {
+            ExtensionType type = table.get(extension);
+            table.put(extension, new ExtensionType(type != null ? type.category : FileCategory.OTHER, mimeType));
+        }
     }
     
-    private static boolean isDocumentFile(String extension) {
-        String[] docExtensions = {"pdf", "doc", "docx", "xls", "xlsx", "ppt", "pptx", "txt", 
-                                  "rtf", "odt", "ods", "odp", "md", "csv"};
-        return contains(extension, docExtensions);
+    // Adds or overrides a mapping at runtime. Items already listed keep their
+    // category, so cached listings are dropped to pick the change up.
+    public static synchronized void register(String extension, FileCategory category, String mimeType) {
+        if (extension == null || extension.isEmpty() || category == null || category == FileCategory.FOLDER) {
+            throw new IllegalArgumentException("Invalid mapping: " + extension + " -> " + category);
+        }
+        Map<String, ExtensionType> table = new HashMap<>(extensionTable);
+        table.put(extension.toLowerCase(Locale.ROOT), new ExtensionType(category, mimeType));
+        extensionTable = Collections.unmodifiableMap(table);
+        DirectoryCache.getInstance().clear();
     }
     
-    private static boolean isAudioFile(String extension) {
-        String[] audioExtensions = {"mp3", "wav", "ogg", "m4a", "flac", "aac", "wma", "mid", "midi"};
-        return contains(extension, audioExtensions);
+    // Extensions from FileUtils.getFileExtension are already lower case
+    public static FileCategory getCategory(boolean directory, String extension) {
+        if (directory) return FileCategory.FOLDER;
+        if (extension == null || extension.isEmpty()) return FileCategory.OTHER;
+        
+        ExtensionType type = extensionTable.get(extension);
+        if (type == null) {
+            type = extensionTable.get(extension.toLowerCase(Locale.ROOT));
+        }
+        return type != null ? type.category : FileCategory.OTHER;
     }
     
-    private static boolean isVideoFile(String extension) {
-        String[] videoExtensions = {"mp4", "avi", "mkv", "mov", "wmv", "flv", "webm", "m4v", "3gp"};
-        return contains(extension, videoExtensions);
+    public static int getIconResource(FileItem fileItem) {
+        return fileItem.getCategory().getIconResource();
     }
     
-    private static boolean isArchiveFile(String extension) {
-        String[] archiveExtensions = {"zip", "rar", "7z", "tar", "gz", "bz2", "xz", "iso", "jar"};
-        return contains(extension, archiveExtensions);
+    public static int getIconColor(FileItem fileItem) {
+        return fileItem.getCategory().getColorResource();
     }
     
-    private static boolean isCodeFile(String extension) {
-        String[] codeExtensions = {"java", "kt", "xml", "html", "htm", "css", "js", "cpp", "c", "h", 
-                                   "py", "php", "json", "sql", "sh", "bat", "gradle", "yml", "yaml"};
-        return contains(extension, codeExtensions);
+    public static int getExtensionBackground(String extension) {
+        return getCategory(false, extension).getBadgeBackground();
     }
     
-    private static boolean contains(String extension, String[] extensions) {
-        for (String ext : extensions) {
-            if (ext.equals(extension)) {
-                return true;
-            }
-        }
-        return false;
+    public static String getMimeType(String extension) {
+        if (extension == null) return null;
+        
+        ExtensionType type = extensionTable.get(extension.toLowerCase(Locale.ROOT));
+        return type != null ? type.mimeType : null;
     }
 }
@@ -9,12 +9,11 @@ import android.os.StatFs;
 import android.provider.DocumentsContract;
 import android.util.Log;
 import androidx.documentfile.provider.DocumentFile;
+import com.filemanager.models.FileItem;
+import com.filemanager.models.OperationResult;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.text.DecimalFormat;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -30,58 +29,25 @@ public class FileUtils {
     private static final String TAG = "FileUtils";
     
     public static List<FileItem> getFilesInDirectory(String path) {
-        List<FileItem> fileList = new ArrayList<>();
+        File directory = new File(path);
         
-        try {
-            File directory = new File(path);
-            
-            if (!directory.exists() || !directory.isDirectory()) {
-                Log.e(TAG, "Invalid directory: " + path);
-                return fileList;
-            }
-            
-            File[] files = directory.listFiles();
-            if (files == null) return fileList;
-            
-            // First add directories
-            for (File file : files) {
-                if (file.isDirectory() && !file.isHidden()) {
-                    fileList.add(createFileItem(file));
-                }
-            }
-            
-            // Then add files
-            for (File file : files) {
-                if (!file.isDirectory() && !file.isHidden()) {
-                    fileList.add(createFileItem(file));
-                }
-            }
-            
-            // Add hidden files if enabled
-            for (File file : files) {
-                if (file.isHidden()) {
-                    fileList.add(createFileItem(file));
-                }
-            }
-            
-        } catch (SecurityException e) {
-            Log.e(TAG, "Security exception accessing directory: " + path, e);
-        } catch (Exception e) {
-            Log.e(TAG, "Error reading directory: " + path, e);
+        if (!directory.isDirectory()) {
+            Log.e(TAG, "Invalid directory: " + path);
+            return new ArrayList<>();
         }
         
-        return fileList;
+        return DirectoryLister.list(path, true).getItems();
     }
     
     public static FileItem createFileItem(File file) {
         FileItem item = new FileItem();
-        item.setName(file.getName());
         item.setPath(file.getAbsolutePath());
         item.setDirectory(file.isDirectory());
         item.setHidden(file.isHidden());
         item.setSize(file.length());
         item.setLastModified(file.lastModified());
         item.setExtension(getFileExtension(file.getName()));
+        item.setCategory(FileTypeDetector.getCategory(item.isDirectory(), item.getExtension()));
         item.setReadable(file.canRead());
         item.setWritable(file.canWrite());
         item.setExecutable(file.canExecute());
@@ -97,17 +63,7 @@ public class FileUtils {
     }
     
     public static String formatFileSize(long size) {
-        if (size <= 0) return "0 B";
-        
-        final String[] units = new String[]{"B", "KB", "MB", "GB", "TB"};
-        int digitGroups = (int) (Math.log10(size) / Math.log10(1024));
-        
-        if (digitGroups >= units.length) {
-            digitGroups = units.length - 1;
-        }
-        
-        return new DecimalFormat("#,##0.#").format(size / Math.pow(1024, digitGroups)) 
-               + " " + units[digitGroups];
+        return DisplayFormatter.formatSize(size);
     }
     
     public static String formatDate(long timestamp) {
@@ -116,49 +72,23 @@ public class FileUtils {
     }
     
     public static boolean copyFile(File source, File destination) {
-        FileChannel sourceChannel = null;
-        FileChannel destChannel = null;
-        
-        try {
-            if (!destination.getParentFile().exists()) {
-                destination.getParentFile().mkdirs();
-            }
-            
-            sourceChannel = new FileInputStream(source).getChannel();
-            destChannel = new FileOutputStream(destination).getChannel();
-            destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
-            
-            return true;
-        } catch (IOException e) {
-            Log.e(TAG, "Error copying file: " + e.getMessage(), e);
-            return false;
-        } finally {
-            try {
-                if (sourceChannel != null) sourceChannel.close();
-                if (destChannel != null) destChannel.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing channels", e);
-            }
-        }
+        return new CopyEngine(null).copy(source, destination).isSuccess();
     }
     
     public static boolean moveFile(File source, File destination) {
-        if (copyFile(source, destination)) {
-            return deleteFile(source);
-        }
-        return false;
+        return new MoveEngine(null).move(source, destination).isSuccess();
     }
     
     public static boolean deleteFile(File file) {
-        if (file.isDirectory()) {
-            File[] files = file.listFiles();
-            if (files != null) {
-                for (File child : files) {
-                    deleteFile(child);
-                }
-            }
+        if (!Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        
+        OperationResult result = DeleteEngine.deleteBlocking(file);
+        for (OperationResult.Failure failure : result.getFailures()) {
+            Log.w(TAG, "Could not delete " + failure);
         }
-        return file.delete();
+        return result.isSuccess();
     }
     
     public static boolean renameFile(File oldFile, String newName) {
@@ -167,19 +97,7 @@ public class FileUtils {
     }
     
     public static long getFolderSize(File folder) {
-        long length = 0;
-        File[] files = folder.listFiles();
-        
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    length += file.length();
-                } else {
-                    length += getFolderSize(file);
-                }
-            }
-        }
-        return length;
+        return FolderSizeEngine.calculateBlocking(folder).getBytes();
     }
     
     public static String getStorageInfo(String path) {
@@ -0,0 +1,259 @@
+package com.filemanager;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Parallel folder size/count walker. Every directory is its own fork-join
+// task, so wide trees spread over all cores and deep trees never recurse on
+// a single stack. Symlinks are not followed and hard-linked files are only
+// counted once.
+public class FolderSizeEngine {
+    
+    private static final String TAG = "FolderSizeEngine";
+    
+    private static final long PROGRESS_INTERVAL_NANOS = 100_000_000L;
+    
+    // lstat fields needed per entry; the unix view also gives us the link count
+    private static final String UNIX_ATTRIBUTES = "unix:size,isDirectory,isRegularFile,nlink,dev,ino";
+    
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static volatile boolean unixViewSupported = true;
+    
+    public interface Listener {
+        // Both callbacks run on a pool thread
+        void onProgress(SizeResult partial);
+        void onComplete(SizeResult result);
+    }
+    
+    public static class SizeResult {
+        private final long bytes;
+        private final long files;
+        private final long directories;
+        private final long elapsedNanos;
+        private final boolean cancelled;
+        
+        SizeResult(long bytes, long files, long directories, long elapsedNanos, boolean cancelled) {
+            this.bytes = bytes;
+            this.files = files;
+            this.directories = directories;
+            this.elapsedNanos = elapsedNanos;
+            this.cancelled = cancelled;
+        }
+        
+        public long getBytes() { return bytes; }
+        public long getFiles() { return files; }
+        public long getDirectories() { return directories; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        public boolean isCancelled() { return cancelled; }
+        
+        @Override
+        public String toString() {
+            return "SizeResult{" +
+                    "bytes=" + bytes +
+                    ", files=" + files +
+                    ", directories=" + directories +
+                    ", elapsedMs=" + elapsedNanos / 1_000_000 +
+                    ", cancelled=" + cancelled +
+                    '}';
+        }
+    }
+    
+    public static class Task {
+        private final Listener listener;
+        private final long startNanos = System.nanoTime();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder files = new LongAdder();
+        private final LongAdder directories = new LongAdder();
+        private final Set<Object> seenInodes = ConcurrentHashMap.newKeySet();
+        private final AtomicLong lastProgressNanos = new AtomicLong(startNanos);
+        private volatile boolean cancelled;
+        
+        Task(Listener listener) {
+            this.listener = listener;
+        }
+        
+        public void cancel() {
+            cancelled = true;
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        
+        SizeResult snapshot() {
+            return new SizeResult(bytes.sum(), files.sum(), directories.sum(),
+                    System.nanoTime() - startNanos, cancelled);
+        }
+        
+        // Only one worker wins each interval, the others skip reporting
+        void maybeReportProgress() {
+            if (listener == null) return;
+            long now = System.nanoTime();
+            long last = lastProgressNanos.get();
+            if (now - last >= PROGRESS_INTERVAL_NANOS && lastProgressNanos.compareAndSet(last, now)) {
+                listener.onProgress(snapshot());
+            }
+        }
+        
+        // True the first time an inode is seen. Directories are always tracked so
+        // bind mounts can't loop; files only when they have more than one link.
+        boolean markSeen(Object inode) {
+            return inode == null || seenInodes.add(inode);
+        }
+    }
+    
+    // Shared with other tree walkers so they don't oversubscribe the cores
+    static ForkJoinPool getPool() {
+        return pool;
+    }
+    
+    public static Task calculate(File folder, Listener listener) {
+        return calculate(Collections.singletonList(folder), listener);
+    }
+    
+    public static Task calculate(List<File> roots, Listener listener) {
+        Task task = new Task(listener);
+        pool.execute(new RootTask(task, roots));
+        return task;
+    }
+    
+    public static SizeResult calculateBlocking(File folder) {
+        Task task = new Task(null);
+        pool.invoke(new RootTask(task, Collections.singletonList(folder)));
+        return task.snapshot();
+    }
+    
+    // Selected files are counted directly, selected folders fan out into
+    // directory tasks. The roots themselves are not counted as directories.
+    private static class RootTask extends CountedCompleter<Void> {
+        private final Task task;
+        private final List<File> roots;
+        
+        RootTask(Task task, List<File> roots) {
+            this.task = task;
+            this.roots = roots;
+        }
+        
+        @Override
+        public void compute() {
+            for (File root : roots) {
+                Path path = root.toPath();
+                Map<String, Object> attrs = readAttributes(path);
+                if (attrs == null) continue;
+                
+                if (Boolean.TRUE.equals(attrs.get("isDirectory"))) {
+                    if (task.markSeen(inodeKey(attrs))) {
+                        addToPendingCount(1);
+                        new DirectoryTask(this, task, path).fork();
+                    }
+                } else if (Boolean.TRUE.equals(attrs.get("isRegularFile"))) {
+                    task.bytes.add((Long) attrs.get("size"));
+                    task.files.increment();
+                }
+            }
+            tryComplete();
+        }
+        
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            if (task.listener != null) {
+                SizeResult result = task.snapshot();
+                Log.d(TAG, roots.size() + " root(s): " + result);
+                task.listener.onComplete(result);
+            }
+        }
+    }
+    
+    private static class DirectoryTask extends CountedCompleter<Void> {
+        private final Task task;
+        private final Path directory;
+        
+        DirectoryTask(CountedCompleter<?> parent, Task task, Path directory) {
+            super(parent);
+            this.task = task;
+            this.directory = directory;
+        }
+        
+        @Override
+        public void compute() {
+            if (!task.isCancelled()) {
+                walk();
+            }
+            tryComplete();
+        }
+        
+        private void walk() {
+            long bytes = 0;
+            long files = 0;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    if (task.isCancelled()) break;
+                    
+                    Map<String, Object> attrs = readAttributes(entry);
+                    if (attrs == null) continue;
+                    
+                    if (Boolean.TRUE.equals(attrs.get("isDirectory"))) {
+                        if (task.markSeen(inodeKey(attrs))) {
+                            task.directories.increment();
+                            addToPendingCount(1);
+                            new DirectoryTask(this, task, entry).fork();
+                        }
+                    } else if (Boolean.TRUE.equals(attrs.get("isRegularFile"))) {
+                        Object nlink = attrs.get("nlink");
+                        boolean linked = nlink instanceof Number && ((Number) nlink).intValue() > 1;
+                        if (!linked || task.markSeen(inodeKey(attrs))) {
+                            bytes += (Long) attrs.get("size");
+                            files++;
+                        }
+                    }
+                }
+            } catch (IOException | SecurityException e) {
+                Log.w(TAG, "Cannot read directory: " + directory, e);
+            }
+            
+            task.bytes.add(bytes);
+            task.files.add(files);
+            task.maybeReportProgress();
+        }
+    }
+    
+    private static Map<String, Object> readAttributes(Path entry) {
+        try {
+            if (unixViewSupported) {
+                try {
+                    return Files.readAttributes(entry, UNIX_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    unixViewSupported = false;
+                }
+            }
+            // Without the unix view there is no link count; fileKey still lets
+            // directories be de-duplicated
+            return Files.readAttributes(entry, "size,isDirectory,isRegularFile,fileKey",
+                    LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+    
+    private static Object inodeKey(Map<String, Object> attrs) {
+        Object ino = attrs.get("ino");
+        if (ino != null) {
+            return attrs.get("dev") + ":" + ino;
+        }
+        return attrs.get("fileKey");
+    }
+}
@@ -0,0 +1,337 @@
+package com.filemanager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Searches by walking the tree, for when FileNameIndex has nothing yet.
+// Every directory is its own fork-join task on the shared walker pool, and
+// matches reach the UI in sorted batches while the walk goes on. Hidden
+// entries are skipped before the stat; the name, category, size and date
+// checks run right after it, so only matches ever become FileItems. The walk
+// stops once the result limit is reached.
+public class LiveSearch {
+    
+    private static final String TAG = "LiveSearch";
+    
+    // How often found matches are handed to the main thread
+    private static final long BATCH_INTERVAL_NANOS = 150_000_000L;
+    
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    
+    public interface Listener {
+        // Both callbacks run on the main thread, and not after cancel()
+        void onResults(Search search, List<FileItem> sortedBatch);
+        void onComplete(Search search, Summary summary);
+    }
+    
+    // Everything a match must satisfy besides its name. The defaults accept
+    // all visible files and folders.
+    public static class Filter {
+        private Set<FileCategory> categories; // null for any
+        private long minSize = 0;
+        private long maxSize = Long.MAX_VALUE;
+        private long modifiedAfter = Long.MIN_VALUE;
+        private long modifiedBefore = Long.MAX_VALUE;
+        private boolean includeHidden;
+        
+        public Set<FileCategory> getCategories() { return categories; }
+        public void setCategories(Set<FileCategory> categories) {
+            this.categories = categories != null ? EnumSet.copyOf(categories) : null;
+        }
+        
+        // Sizes only apply to files; folders pass any size range
+        public long getMinSize() { return minSize; }
+        public long getMaxSize() { return maxSize; }
+        public void setSizeRange(long minSize, long maxSize) {
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+        }
+        
+        // Epoch millis, both inclusive
+        public long getModifiedAfter() { return modifiedAfter; }
+        public long getModifiedBefore() { return modifiedBefore; }
+        public void setModifiedRange(long modifiedAfter, long modifiedBefore) {
+            this.modifiedAfter = modifiedAfter;
+            this.modifiedBefore = modifiedBefore;
+        }
+        
+        // Hidden folders are not walked into either
+        public boolean isIncludeHidden() { return includeHidden; }
+        public void setIncludeHidden(boolean includeHidden) { this.includeHidden = includeHidden; }
+        
+        boolean accepts(String name, BasicFileAttributes attrs) {
+            boolean directory = attrs.isDirectory();
+            if (!directory && (attrs.size() < minSize || attrs.size() > maxSize)) return false;
+            
+            long lastModified = attrs.lastModifiedTime().toMillis();
+            if (lastModified < modifiedAfter || lastModified > modifiedBefore) return false;
+            
+            return categories == null || categories.contains(
+                    FileTypeDetector.getCategory(directory, FileUtils.getFileExtension(name)));
+        }
+        
+        @Override
+        public String toString() {
+            return "Filter{" +
+                    "categories=" + categories +
+                    ", size=" + minSize + ".." + maxSize +
+                    ", modified=" + modifiedAfter + ".." + modifiedBefore +
+                    ", includeHidden=" + includeHidden +
+                    '}';
+        }
+    }
+    
+    public static class Summary {
+        private final int matches;
+        private final long entries;
+        private final long directories;
+        private final long elapsedNanos;
+        private final boolean limitReached;
+        
+        Summary(int matches, long entries, long directories, long elapsedNanos, boolean limitReached) {
+            this.matches = matches;
+            this.entries = entries;
+            this.directories = directories;
+            this.elapsedNanos = elapsedNanos;
+            this.limitReached = limitReached;
+        }
+        
+        public int getMatches() { return matches; }
+        public long getEntries() { return entries; }
+        public long getDirectories() { return directories; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        // The walk stopped early; there may be more matches
+        public boolean isLimitReached() { return limitReached; }
+        
+        @Override
+        public String toString() {
+            return "Summary{" +
+                    "matches=" + matches +
+                    ", entries=" + entries +
+                    ", directories=" + directories +
+                    ", elapsedMs=" + elapsedNanos / 1_000_000 +
+                    ", limitReached=" + limitReached +
+                    '}';
+        }
+    }
+    
+    public static class Search {
+        private final String query;
+        private final Filter filter;
+        private final int limit;
+        private final SortEngine.Order order;
+        private final Listener listener;
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger reserved = new AtomicInteger();
+        private final LongAdder entries = new LongAdder();
+        private final LongAdder directories = new LongAdder();
+        private final ConcurrentLinkedQueue<FileItem> pending = new ConcurrentLinkedQueue<>();
+        // The first match is delivered right away, later ones in batches
+        private final AtomicLong lastBatchNanos = new AtomicLong(startNanos - BATCH_INTERVAL_NANOS);
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private volatile boolean limitReached;
+        private volatile boolean cancelled;
+        
+        Search(String query, Filter filter, int limit, SortEngine.Order order, Listener listener) {
+            this.query = query;
+            this.filter = filter;
+            this.limit = limit;
+            this.order = order;
+            this.listener = listener;
+        }
+        
+        public String getQuery() { return query; }
+        public Filter getFilter() { return filter; }
+        
+        public void cancel() {
+            cancelled = true;
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        
+        boolean isStopped() {
+            return cancelled || limitReached;
+        }
+        
+        // False once the limit is used up; the caller must not add the match
+        boolean reserve() {
+            if (reserved.incrementAndGet() <= limit) return true;
+            limitReached = true;
+            return false;
+        }
+        
+        void add(FileItem item) {
+            pending.add(item);
+            long now = System.nanoTime();
+            long last = lastBatchNanos.get();
+            if (now - last >= BATCH_INTERVAL_NANOS && lastBatchNanos.compareAndSet(last, now)) {
+                deliverPending();
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                // Otherwise a match found just after a batch waits for the next
+                // match, which in a long walk may never come
+                long delayMillis = Math.max(1, (last + BATCH_INTERVAL_NANOS - now) / 1_000_000);
+                mainHandler.postDelayed(() -> FolderSizeEngine.getPool().execute(this::flush), delayMillis);
+            }
+        }
+        
+        private void flush() {
+            flushScheduled.set(false);
+            if (cancelled) return;
+            lastBatchNanos.set(System.nanoTime());
+            deliverPending();
+        }
+        
+        // Sorted and formatted off the main thread, so each batch only merges
+        // there. Batches and the completion are posted under the search's lock,
+        // so they reach the main thread in the order they were taken.
+        synchronized void deliverPending() {
+            List<FileItem> batch = new ArrayList<>();
+            for (FileItem item; (item = pending.poll()) != null; ) {
+                batch.add(item);
+            }
+            if (batch.isEmpty()) return;
+            
+            SortEngine.sort(batch, order);
+            DisplayFormatter.prepare(batch);
+            mainHandler.post(() -> {
+                if (!cancelled) {
+                    listener.onResults(this, batch);
+                }
+            });
+        }
+        
+        synchronized void complete() {
+            deliverPending();
+            Summary summary = new Summary(Math.min(reserved.get(), limit), entries.sum(),
+                    directories.sum(), System.nanoTime() - startNanos, limitReached);
+            Log.d(TAG, "'" + query + "' " + filter + ": " + summary);
+            mainHandler.post(() -> {
+                if (!cancelled) {
+                    listener.onComplete(this, summary);
+                }
+            });
+        }
+    }
+    
+    // Case-insensitive substring match on names; an empty query matches
+    // everything the filter accepts
+    public static Search start(List<String> roots, String query, Filter filter, int limit,
+                               SortEngine.Order order, Listener listener) {
+        Search search = new Search(query, filter, limit, order, listener);
+        FolderSizeEngine.getPool().execute(new RootTask(search, roots));
+        return search;
+    }
+    
+    private static class RootTask extends CountedCompleter<Void> {
+        private final Search search;
+        private final List<String> roots;
+        
+        RootTask(Search search, List<String> roots) {
+            this.search = search;
+            this.roots = roots;
+        }
+        
+        @Override
+        public void compute() {
+            for (String root : roots) {
+                addToPendingCount(1);
+                new DirectoryTask(this, search, Paths.get(root)).fork();
+            }
+            tryComplete();
+        }
+        
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            search.complete();
+        }
+    }
+    
+    private static class DirectoryTask extends CountedCompleter<Void> {
+        private final Search search;
+        private final Path directory;
+        
+        DirectoryTask(CountedCompleter<?> parent, Search search, Path directory) {
+            super(parent);
+            this.search = search;
+            this.directory = directory;
+        }
+        
+        @Override
+        public void compute() {
+            if (!search.isStopped()) {
+                walk();
+            }
+            tryComplete();
+        }
+        
+        private void walk() {
+            Filter filter = search.filter;
+            String query = search.query;
+            String parent = directory.toString();
+            long entries = 0;
+            
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path entry : stream) {
+                    if (search.isStopped()) break;
+                    entries++;
+                    
+                    // Only the hidden check can skip the stat: every other entry
+                    // may be a directory to descend into, so the name and the
+                    // filters are checked once its attributes are read
+                    String name = entry.getFileName().toString();
+                    if (!filter.includeHidden && name.startsWith(".")) continue;
+                    
+                    // Not following links keeps the walk out of cycles
+                    BasicFileAttributes attrs = DirectoryLister.readAttributes(entry, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs == null) continue;
+                    
+                    if (attrs.isDirectory()) {
+                        search.directories.increment();
+                        addToPendingCount(1);
+                        new DirectoryTask(this, search, entry).fork();
+                    }
+                    if (!containsIgnoreCase(name, query) || !filter.accepts(name, attrs)) continue;
+                    if (!search.reserve()) break;
+                    
+                    FileItem item = attrs.isSymbolicLink()
+                            ? DirectoryLister.createFileItem(entry, parent)
+                            : DirectoryLister.createFileItem(entry, parent, attrs);
+                    if (item != null) {
+                        search.add(item);
+                    }
+                }
+            } catch (IOException | SecurityException e) {
+                Log.w(TAG, "Cannot read directory: " + directory, e);
+            }
+            search.entries.add(entries);
+        }
+    }
+    
+    static boolean containsIgnoreCase(String text, String query) {
+        for (int i = 0; i + query.length() <= text.length(); i++) {
+            if (text.regionMatches(true, i, query, 0, query.length())) return true;
+        }
+        return false;
+    }
+}
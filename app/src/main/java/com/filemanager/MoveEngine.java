@@ -0,0 +1,137 @@
+package com.filemanager;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Objects;
+
+// Moves files and directories. Within one volume this is a single atomic
+// rename, whatever the size; across volumes the tree is streamed through
+// CopyEngine.copyTree and the source is only deleted once every entry was copied.
+public class MoveEngine {
+    
+    private static final String TAG = "MoveEngine";
+    
+    public enum Method {
+        RENAME,
+        COPY_AND_DELETE,
+        NONE
+    }
+    
+    public static class Result {
+        private final boolean success;
+        private final Method method;
+        private final long bytesCopied;
+        private final long elapsedNanos;
+        private final String error;
+        
+        Result(boolean success, Method method, long bytesCopied, long elapsedNanos, String error) {
+            this.success = success;
+            this.method = method;
+            this.bytesCopied = bytesCopied;
+            this.elapsedNanos = elapsedNanos;
+            this.error = error;
+        }
+        
+        public boolean isSuccess() { return success; }
+        public Method getMethod() { return method; }
+        public long getBytesCopied() { return bytesCopied; }
+        public long getElapsedNanos() { return elapsedNanos; }
+        public String getError() { return error; }
+        
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "success=" + success +
+                    ", method=" + method +
+                    ", bytesCopied=" + bytesCopied +
+                    ", elapsedMs=" + elapsedNanos / 1_000_000 +
+                    (error != null ? ", error='" + error + '\'' : "") +
+                    '}';
+        }
+    }
+    
+    private final CopyEngine copyEngine;
+    
+    public MoveEngine(CopyEngine.ProgressListener listener) {
+        this.copyEngine = new CopyEngine(listener);
+    }
+    
+    public void cancel() {
+        copyEngine.cancel();
+    }
+    
+    public Result move(File source, File destination) {
+        long start = System.nanoTime();
+        Path from = source.toPath();
+        Path to = destination.toPath();
+        
+        if (!Files.exists(from, LinkOption.NOFOLLOW_LINKS)) {
+            return finish(source, new Result(false, Method.NONE, 0, System.nanoTime() - start,
+                    "Source does not exist"));
+        }
+        if (Files.exists(to, LinkOption.NOFOLLOW_LINKS)) {
+            return finish(source, new Result(false, Method.NONE, 0, System.nanoTime() - start,
+                    "Destination already exists"));
+        }
+        if (to.toAbsolutePath().normalize().startsWith(from.toAbsolutePath().normalize())) {
+            return finish(source, new Result(false, Method.NONE, 0, System.nanoTime() - start,
+                    "Cannot move a folder into itself"));
+        }
+        
+        File parent = destination.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        
+        // rename(2) fails with EXDEV across mounts, so only try it when the
+        // device ids match or can't be compared. ATOMIC_MOVE would replace an
+        // entry created at the destination since the check above; without
+        // REPLACE_EXISTING the move fails instead.
+        if (isSameVolume(from, parent != null ? parent.toPath() : to)) {
+            try {
+                Files.move(from, to);
+                return finish(source, new Result(true, Method.RENAME, 0, System.nanoTime() - start, null));
+            } catch (FileAlreadyExistsException e) {
+                return finish(source, new Result(false, Method.NONE, 0, System.nanoTime() - start,
+                        "Destination already exists"));
+            } catch (IOException | SecurityException e) {
+                Log.w(TAG, "Rename failed, copying instead", e);
+            }
+        }
+        
+        CopyEngine.Result copy = copyEngine.copyTree(source, destination);
+        if (!copy.isSuccess()) {
+            // The destination did not exist before, so the partial copy can go
+            FileUtils.deleteFile(destination);
+            return finish(source, new Result(false, Method.COPY_AND_DELETE, copy.getBytesCopied(),
+                    System.nanoTime() - start, copy.isCancelled() ? "Cancelled" : copy.getError()));
+        }
+        
+        if (!FileUtils.deleteFile(source)) {
+            return finish(source, new Result(false, Method.COPY_AND_DELETE, copy.getBytesCopied(),
+                    System.nanoTime() - start, "Copied, but the source could not be fully deleted"));
+        }
+        return finish(source, new Result(true, Method.COPY_AND_DELETE, copy.getBytesCopied(),
+                System.nanoTime() - start, null));
+    }
+    
+    private static boolean isSameVolume(Path a, Path b) {
+        try {
+            Object devA = Files.getAttribute(a, "unix:dev", LinkOption.NOFOLLOW_LINKS);
+            Object devB = Files.getAttribute(b, "unix:dev");
+            return Objects.equals(devA, devB);
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException | SecurityException e) {
+            return true;
+        }
+    }
+    
+    private static Result finish(File source, Result result) {
+        Log.d(TAG, source.getName() + ": " + result);
+        return result;
+    }
+}
@@ -0,0 +1,196 @@
+package com.filemanager;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Open-addressing map from a long key to a sorted array of int ids, the
+// inverted lists behind FileNameIndex and ContentIndex. Key 0 marks an empty
+// slot, so callers never use it. Not thread-safe; the indexes guard it
+// with their own locks.
+class PostingTable {
+    
+    private long[] keys = new long[1 << 14];
+    private int[][] postings = new int[1 << 14][];
+    private int[] sizes = new int[1 << 14];
+    private int used;
+    
+    void add(long key, int id) {
+        if (used * 2 >= keys.length) grow();
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+        if (keys[i] == 0) {
+            keys[i] = key;
+            postings[i] = new int[2];
+            used++;
+        }
+        
+        int[] ids = postings[i];
+        int size = sizes[i];
+        // Ids are mostly added in increasing order
+        int at = size == 0 || ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+        if (at >= 0 && at < size) return;
+        if (at < 0) at = -at - 1;
+        if (size == ids.length) {
+            ids = postings[i] = Arrays.copyOf(ids, size * 2);
+        }
+        System.arraycopy(ids, at, ids, at + 1, size - at);
+        ids[at] = id;
+        sizes[i] = size + 1;
+    }
+    
+    void remove(long key, int id) {
+        int i = find(key);
+        if (i < 0) return;
+        int at = Arrays.binarySearch(postings[i], 0, sizes[i], id);
+        if (at < 0) return;
+        System.arraycopy(postings[i], at + 1, postings[i], at, sizes[i] - at - 1);
+        sizes[i]--;
+    }
+    
+    // Sorted ids listed under every one of the keys, intersecting from the
+    // shortest list so the work is bounded by the rarest key
+    int[] intersect(long[] queryKeys, int count) {
+        int[][] lists = new int[count][];
+        int[] lengths = new int[count];
+        for (int k = 0; k < count; k++) {
+            int slot = find(queryKeys[k]);
+            if (slot < 0 || sizes[slot] == 0) return new int[0];
+            lists[k] = postings[slot];
+            lengths[k] = sizes[slot];
+        }
+        
+        Integer[] order = new Integer[count];
+        for (int k = 0; k < count; k++) order[k] = k;
+        Arrays.sort(order, (a, b) -> Integer.compare(lengths[a], lengths[b]));
+        
+        int[] result = Arrays.copyOf(lists[order[0]], lengths[order[0]]);
+        int length = result.length;
+        for (int k = 1; k < count && length > 0; k++) {
+            int[] other = lists[order[k]];
+            int otherSize = lengths[order[k]];
+            int kept = 0;
+            for (int i = 0, j = 0; i < length && j < otherSize; ) {
+                if (result[i] < other[j]) {
+                    i++;
+                } else if (result[i] > other[j]) {
+                    j++;
+                } else {
+                    result[kept++] = result[i];
+                    i++;
+                    j++;
+                }
+            }
+            length = kept;
+        }
+        return Arrays.copyOf(result, length);
+    }
+    
+    // Drops every id in ids from every list in one pass over the table, and
+    // gives back the memory of lists that shrank to a quarter or less
+    void removeAll(BitSet ids) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == 0) continue;
+            int[] list = postings[i];
+            int kept = 0;
+            for (int j = 0; j < sizes[i]; j++) {
+                if (!ids.get(list[j])) list[kept++] = list[j];
+            }
+            sizes[i] = kept;
+            if (kept <= list.length / 4) {
+                postings[i] = Arrays.copyOf(list, Math.max(2, kept));
+            }
+        }
+    }
+    
+    void clear() {
+        keys = new long[1 << 14];
+        postings = new int[1 << 14][];
+        sizes = new int[1 << 14];
+        used = 0;
+    }
+    
+    // Keys whose lists are empty are left out
+    void writeTo(DataOutputStream out) throws IOException {
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0 && sizes[i] > 0) count++;
+        }
+        out.writeInt(count);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == 0 || sizes[i] == 0) continue;
+            out.writeLong(keys[i]);
+            out.writeInt(sizes[i]);
+            for (int j = 0; j < sizes[i]; j++) {
+                out.writeInt(postings[i][j]);
+            }
+        }
+    }
+    
+    // Adds lists written by writeTo; their keys must not be in the table yet
+    void readFrom(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int k = 0; k < count; k++) {
+            long key = in.readLong();
+            int[] ids = new int[in.readInt()];
+            for (int j = 0; j < ids.length; j++) {
+                ids[j] = in.readInt();
+            }
+            if (used * 2 >= keys.length) grow();
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != 0) i = (i + 1) & mask;
+            keys[i] = key;
+            postings[i] = ids.length > 0 ? ids : new int[2];
+            sizes[i] = ids.length;
+            used++;
+        }
+    }
+    
+    int keyCount() {
+        return used;
+    }
+    
+    // Heap held by the table and its lists, for the indexes' size reports
+    long sizeBytes() {
+        long bytes = keys.length * (8L + 4L + 4L);
+        for (int[] ids : postings) {
+            if (ids != null) bytes += 16 + 4L * ids.length;
+        }
+        return bytes;
+    }
+    
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) return i;
+        }
+        return -1;
+    }
+    
+    private void grow() {
+        long[] oldKeys = keys;
+        int[][] oldPostings = postings;
+        int[] oldSizes = sizes;
+        keys = new long[oldKeys.length * 2];
+        postings = new int[keys.length][];
+        sizes = new int[keys.length];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == 0) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (keys[i] != 0) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            postings[i] = oldPostings[j];
+            sizes[i] = oldSizes[j];
+        }
+    }
+    
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key >>> 32);
+    }
+}
@@ -0,0 +1,446 @@
+package com.filemanager;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import com.filemanager.models.OperationResult;
+import com.filemanager.services.OperationScheduler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The most recently modified files across all storage volumes, for the
+// Recent Files view. Only the newest CAPACITY files are kept, in a min-heap
+// ordered by mtime: once it is full, any file older than its root is turned
+// away without taking the lock, so a full scan costs one stat per file and
+// almost no allocation. The list is seeded by a parallel walk, then kept
+// current from MediaStore change notifications and finished file operations,
+// and saved so the next launch shows it before anything is scanned.
+public class RecentFilesIndex {
+    
+    private static final String TAG = "RecentFilesIndex";
+    private static final String SNAPSHOT_FILE = "recent_files.idx";
+    private static final int VERSION = 1;
+    
+    private static final int CAPACITY = 500;
+    // MediaStore sends bursts of changes; they are handled together
+    private static final long CHANGE_DELAY_MS = 1000;
+    // Notifications can lag the file's mtime a little
+    private static final long CHANGE_SLACK_MS = 2000;
+    
+    private static RecentFilesIndex instance;
+    
+    public interface Listener {
+        // Runs on the main thread with the newest files first
+        void onRecentFilesChanged(List<FileItem> recentFiles);
+    }
+    
+    private static class Entry {
+        final String path;
+        final long lastModified;
+        
+        Entry(String path, long lastModified) {
+            this.path = path;
+            this.lastModified = lastModified;
+        }
+    }
+    
+    private static final Comparator<Entry> OLDEST_FIRST = (a, b) -> {
+        int result = Long.compare(a.lastModified, b.lastModified);
+        return result != 0 ? result : b.path.compareTo(a.path);
+    };
+    
+    private final Context context;
+    private final File snapshotFile;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    
+    // Guards heap and byPath
+    private final Object lock = new Object();
+    private final PriorityQueue<Entry> heap = new PriorityQueue<>(CAPACITY + 1, OLDEST_FIRST);
+    private final Map<String, Entry> byPath = new HashMap<>();
+    // mtime of the oldest kept file while the heap is full; older files are skipped
+    private volatile long threshold = Long.MIN_VALUE;
+    // Wall-clock time of the seed walk or the last MediaStore query, where the
+    // next query picks up. File mtimes can't be used: one file stamped in the
+    // future would push the cursor past every later change.
+    private final AtomicLong queriedAt = new AtomicLong();
+    
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong rejectedFast = new AtomicLong();
+    
+    private boolean loaded;
+    private boolean started;
+    private volatile boolean changed;
+    private boolean changePending;
+    
+    public static synchronized RecentFilesIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new RecentFilesIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    private RecentFilesIndex(Context context) {
+        this.context = context;
+        this.snapshotFile = new File(context.getFilesDir(), SNAPSHOT_FILE);
+    }
+    
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+    
+    // The saved or current list, newest first. Reads the snapshot on first
+    // use, so call it off the main thread.
+    public List<FileItem> getRecentFiles() {
+        load();
+        List<Entry> entries;
+        synchronized (lock) {
+            entries = new ArrayList<>(heap);
+        }
+        entries.sort(OLDEST_FIRST.reversed());
+        
+        List<FileItem> items = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            FileItem item = DirectoryLister.createFileItem(Paths.get(entry.path));
+            if (item != null && !item.isDirectory()) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+    
+    // Seeds the list with a walk of every root and starts following changes;
+    // later calls do nothing
+    public synchronized void start(List<String> roots) {
+        if (started) return;
+        started = true;
+        
+        long start = System.nanoTime();
+        queriedAt.set(System.currentTimeMillis());
+        AtomicInteger pendingRoots = new AtomicInteger(roots.size());
+        FolderSizeEngine.getPool().execute(() -> {
+            load();
+            for (String root : roots) {
+                FolderSizeEngine.getPool().execute(new DirectoryTask(null, Paths.get(root)) {
+                    @Override
+                    public void onCompletion(CountedCompleter<?> caller) {
+                        if (pendingRoots.decrementAndGet() > 0) return;
+                        pruneMissing();
+                        Log.d(TAG, "Seeded in " + (System.nanoTime() - start) / 1_000_000 + " ms: " + RecentFilesIndex.this);
+                        publish();
+                    }
+                });
+            }
+        });
+        
+        context.getContentResolver().registerContentObserver(
+                MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL), true,
+                new ContentObserver(mainHandler) {
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        onMediaChanged();
+                    }
+                });
+        OperationScheduler.getInstance().addListener(operationListener);
+    }
+    
+    private class DirectoryTask extends CountedCompleter<Void> {
+        private final Path directory;
+        
+        DirectoryTask(DirectoryTask parent, Path directory) {
+            super(parent);
+            this.directory = directory;
+        }
+        
+        @Override
+        public void compute() {
+            walk(directory, this);
+            tryComplete();
+        }
+    }
+    
+    // Hidden entries are app data and caches, not files the user worked on.
+    // With a task, subdirectories fork; without one the walk stays on this thread.
+    private void walk(Path directory, DirectoryTask task) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                if (entry.getFileName().toString().startsWith(".")) continue;
+                
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException | SecurityException e) {
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    if (task != null) {
+                        task.addToPendingCount(1);
+                        new DirectoryTask(task, entry).fork();
+                    } else {
+                        walk(entry, null);
+                    }
+                } else if (attrs.isRegularFile()) {
+                    offer(entry.toString(), attrs.lastModifiedTime().toMillis());
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Cannot read directory: " + directory, e);
+        }
+    }
+    
+    private void offer(String path, long lastModified) {
+        offered.incrementAndGet();
+        if (lastModified < threshold) {
+            rejectedFast.incrementAndGet();
+            return;
+        }
+        
+        synchronized (lock) {
+            Entry old = byPath.get(path);
+            if (old != null) {
+                if (old.lastModified == lastModified) return;
+                // O(CAPACITY), but only for files already in the list
+                heap.remove(old);
+            }
+            Entry entry = new Entry(path, lastModified);
+            heap.add(entry);
+            byPath.put(path, entry);
+            if (heap.size() > CAPACITY) {
+                Entry evicted = heap.poll();
+                byPath.remove(evicted.path);
+                if (evicted == entry && old == null) return;
+            }
+            updateThreshold();
+            changed = true;
+        }
+    }
+    
+    // Drops the path and everything below it
+    private void remove(String path) {
+        String prefix = path + File.separator;
+        synchronized (lock) {
+            boolean removed = heap.removeIf(entry -> {
+                if (!entry.path.equals(path) && !entry.path.startsWith(prefix)) return false;
+                byPath.remove(entry.path);
+                return true;
+            });
+            if (removed) {
+                updateThreshold();
+                changed = true;
+            }
+        }
+    }
+    
+    // Lock held. A removal frees a slot, so the threshold drops back until a
+    // rescan fills it again.
+    private void updateThreshold() {
+        threshold = heap.size() >= CAPACITY ? heap.peek().lastModified : Long.MIN_VALUE;
+    }
+    
+    // Deletions are not announced with a path, so the kept files are
+    // checked instead; there are never more than CAPACITY of them
+    private void pruneMissing() {
+        List<String> paths;
+        synchronized (lock) {
+            paths = new ArrayList<>(byPath.keySet());
+        }
+        for (String path : paths) {
+            if (!new File(path).isFile()) {
+                remove(path);
+            }
+        }
+    }
+    
+    private void onMediaChanged() {
+        if (changePending) return;
+        changePending = true;
+        mainHandler.postDelayed(() -> {
+            changePending = false;
+            FolderSizeEngine.getPool().execute(this::applyMediaChanges);
+        }, CHANGE_DELAY_MS);
+    }
+    
+    // Picks up what other apps wrote: every file MediaStore saw modified
+    // since the previous query is stat'ed and offered
+    private void applyMediaChanges() {
+        long since = (queriedAt.getAndSet(System.currentTimeMillis()) - CHANGE_SLACK_MS) / 1000;
+        String[] projection = {MediaStore.Files.FileColumns.DATA};
+        String selection = MediaStore.Files.FileColumns.DATE_MODIFIED + " >= ?";
+        
+        try (Cursor cursor = context.getContentResolver().query(
+                MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL), projection,
+                selection, new String[]{String.valueOf(since)}, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                String path = cursor.getString(0);
+                if (path == null || new File(path).getName().startsWith(".")) continue;
+                
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(Paths.get(path),
+                            BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isRegularFile()) {
+                        offer(path, attrs.lastModifiedTime().toMillis());
+                    }
+                } catch (IOException | SecurityException e) {
+                    remove(path);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "MediaStore query failed", e);
+        }
+        pruneMissing();
+        publish();
+    }
+    
+    // Our own copies, moves and deletes, which MediaStore may not see at once
+    private final OperationScheduler.Listener operationListener = new OperationScheduler.Listener() {
+        @Override
+        public void onProgress(OperationScheduler.Progress progress) {
+        }
+        
+        // Copied trees can be large, so they are walked on the pool, not the lane
+        @Override
+        public void onJobComplete(OperationScheduler.Job job, OperationResult result) {
+            FolderSizeEngine.getPool().execute(() -> applyJob(job));
+        }
+    };
+    
+    private void applyJob(OperationScheduler.Job job) {
+        for (File source : job.getSources()) {
+            switch (job.getType()) {
+                case DELETE:
+                    remove(source.getPath());
+                    break;
+                case MOVE:
+                    remove(source.getPath());
+                    offerTree(new File(job.getTarget(), source.getName()));
+                    break;
+                case COPY:
+                    offerTree(new File(job.getTarget(), source.getName()));
+                    break;
+                case RENAME:
+                    remove(source.getPath());
+                    offerTree(new File(source.getParentFile(), job.getNewName()));
+                    break;
+            }
+        }
+        publish();
+    }
+    
+    private void offerTree(File file) {
+        if (file.isDirectory()) {
+            walk(file.toPath(), null);
+        } else if (file.isFile()) {
+            offer(file.getPath(), file.lastModified());
+        }
+    }
+    
+    // Saves and tells the listeners, if anything changed since the last call
+    private void publish() {
+        if (!changed) return;
+        changed = false;
+        save();
+        if (listeners.isEmpty()) return;
+        
+        List<FileItem> items = getRecentFiles();
+        mainHandler.post(() -> {
+            for (Listener listener : listeners) {
+                listener.onRecentFilesChanged(items);
+            }
+        });
+    }
+    
+    private void load() {
+        synchronized (lock) {
+            if (loaded) return;
+            loaded = true;
+            if (!snapshotFile.exists()) return;
+            
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+                if (in.readInt() != VERSION) return;
+                
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Entry entry = new Entry(in.readUTF(), in.readLong());
+                    heap.add(entry);
+                    byPath.put(entry.path, entry);
+                }
+                updateThreshold();
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading snapshot, starting empty", e);
+                heap.clear();
+                byPath.clear();
+            }
+        }
+    }
+    
+    private synchronized void save() {
+        List<Entry> snapshot;
+        synchronized (lock) {
+            snapshot = new ArrayList<>(heap);
+        }
+        
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (Entry entry : snapshot) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.lastModified);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving snapshot", e);
+            tempFile.delete();
+            return;
+        }
+        
+        if (!tempFile.renameTo(snapshotFile)) {
+            Log.e(TAG, "Error replacing snapshot: " + snapshotFile);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "RecentFilesIndex{" +
+                    "files=" + heap.size() +
+                    ", offered=" + offered +
+                    ", rejectedWithoutLock=" + rejectedFast +
+                    ", oldestKept=" + (heap.isEmpty() ? 0 : heap.peek().lastModified) +
+                    '}';
+        }
+    }
+}
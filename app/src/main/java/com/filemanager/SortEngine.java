@@ -0,0 +1,262 @@
+package com.filemanager;
+
+import android.util.Log;
+import com.filemanager.models.FileItem;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+// Sorting for file listings. Names are compared through a locale-aware
+// collation key computed once per FileItem and cached on it, with each digit
+// run prefixed by its length first so "IMG_9" sorts before "IMG_10".
+// Extensions get a cached collation key the same way for type sorts.
+// Comparisons are then plain byte and long compares; big listings build keys
+// and sort in parallel.
+public class SortEngine {
+    
+    private static final String TAG = "SortEngine";
+    
+    // Below this, the fork-join overhead of parallel key building and sorting
+    // costs more than it saves
+    private static final int PARALLEL_THRESHOLD = 10_000;
+    
+    // Digit runs up to this length get a length prefix; longer ones keep their text order
+    private static final int MAX_NUMBER_DIGITS = 99;
+    // Per sorting thread; odd names can't grow the cache past this
+    private static final int MAX_CACHED_EXTENSION_KEYS = 1024;
+    
+    public enum Key {
+        NAME,
+        SIZE, // largest first
+        DATE, // newest first
+        TYPE
+    }
+    
+    // Directories always come first; keys are applied in order and reversed
+    // flips every key, so SIZE reversed is smallest first
+    public static class Order implements Comparator<FileItem> {
+        private final Key[] keys;
+        private final boolean reversed;
+        
+        public Order(boolean reversed, Key... keys) {
+            this.keys = keys.clone();
+            this.reversed = reversed;
+            checkLocale();
+        }
+        
+        boolean uses(Key key) {
+            for (Key k : keys) {
+                if (k == key) return true;
+            }
+            return false;
+        }
+        
+        public Key[] getKeys() { return keys.clone(); }
+        public boolean isReversed() { return reversed; }
+        
+        public Order reverse() {
+            return new Order(!reversed, keys);
+        }
+        
+        @Override
+        public int compare(FileItem a, FileItem b) {
+            if (a.isDirectory() != b.isDirectory()) {
+                return a.isDirectory() ? -1 : 1;
+            }
+            for (Key key : keys) {
+                int result;
+                switch (key) {
+                    case SIZE:
+                        result = Long.compare(b.getSize(), a.getSize());
+                        break;
+                    case DATE:
+                        result = Long.compare(b.getLastModified(), a.getLastModified());
+                        break;
+                    case TYPE:
+                        result = compareKeys(typeKey(a), typeKey(b));
+                        break;
+                    case NAME:
+                    default:
+                        result = compareKeys(nameKey(a), nameKey(b));
+                        break;
+                }
+                if (result != 0) {
+                    return reversed ? -result : result;
+                }
+            }
+            // Equal keys ("007" vs "7", "a" vs "A"): fall back to the raw name
+            // so the order is still total and stable across reloads
+            int result = a.getName().compareTo(b.getName());
+            return reversed ? -result : result;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Order)) return false;
+            Order other = (Order) o;
+            return reversed == other.reversed && Arrays.equals(keys, other.keys);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(keys) + (reversed ? 1 : 0);
+        }
+        
+        @Override
+        public String toString() {
+            return "Order{" + Arrays.toString(keys) + (reversed ? ", reversed" : "") + '}';
+        }
+    }
+    
+    private static class CollatorHolder {
+        final int epoch;
+        final Collator collator;
+        // A listing has few distinct extensions, so their keys are shared
+        final Map<String, byte[]> extensionKeys = new HashMap<>();
+        
+        CollatorHolder(int epoch, Collator collator) {
+            this.epoch = epoch;
+            this.collator = collator;
+        }
+    }
+    
+    private static Locale keyLocale;
+    private static Collator prototype;
+    // Bumped on locale change; keys cached under another epoch are rebuilt
+    private static volatile int keyEpoch;
+    // Collator is not thread-safe, so every sorting thread uses its own clone
+    private static final ThreadLocal<CollatorHolder> collators = new ThreadLocal<>();
+    
+    public static void sort(List<FileItem> items, boolean reversed, Key... keys) {
+        sort(items, new Order(reversed, keys));
+    }
+    
+    public static void sort(List<FileItem> items, Order order) {
+        if (items.size() < 2) return;
+        long start = System.nanoTime();
+        checkLocale();
+        
+        FileItem[] array = items.toArray(new FileItem[0]);
+        boolean parallel = array.length >= PARALLEL_THRESHOLD;
+        
+        // Build the keys up front so the comparisons themselves never allocate
+        if (order.uses(Key.NAME)) {
+            IntStream indices = IntStream.range(0, array.length);
+            (parallel ? indices.parallel() : indices).forEach(i -> nameKey(array[i]));
+        }
+        if (order.uses(Key.TYPE)) {
+            IntStream indices = IntStream.range(0, array.length);
+            (parallel ? indices.parallel() : indices).forEach(i -> typeKey(array[i]));
+        }
+        long keyNanos = System.nanoTime() - start;
+        
+        if (parallel) {
+            Arrays.parallelSort(array, order);
+        } else {
+            Arrays.sort(array, order);
+        }
+        for (int i = 0; i < array.length; i++) {
+            items.set(i, array[i]);
+        }
+        
+        if (parallel) {
+            Log.d(TAG, "Sorted " + array.length + " items by " + order + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms (keys "
+                    + keyNanos / 1_000_000 + " ms)");
+        }
+    }
+    
+    private static byte[] nameKey(FileItem item) {
+        byte[] key = item.getNameSortKey();
+        if (key == null || item.getSortKeyEpoch() != keyEpoch) {
+            CollatorHolder holder = collator();
+            key = holder.collator.getCollationKey(padNumbers(item.getName())).toByteArray();
+            item.setNameSortKey(key, holder.epoch);
+        }
+        return key;
+    }
+    
+    private static byte[] typeKey(FileItem item) {
+        byte[] key = item.getTypeSortKey();
+        if (key == null || item.getSortKeyEpoch() != keyEpoch) {
+            CollatorHolder holder = collator();
+            String extension = item.getExtension() != null ? item.getExtension() : "";
+            key = holder.extensionKeys.get(extension);
+            if (key == null) {
+                key = holder.collator.getCollationKey(extension).toByteArray();
+                if (holder.extensionKeys.size() < MAX_CACHED_EXTENSION_KEYS) {
+                    holder.extensionKeys.put(extension, key);
+                }
+            }
+            item.setTypeSortKey(key, holder.epoch);
+        }
+        return key;
+    }
+    
+    private static CollatorHolder collator() {
+        CollatorHolder holder = collators.get();
+        if (holder == null || holder.epoch != keyEpoch) {
+            synchronized (SortEngine.class) {
+                holder = new CollatorHolder(keyEpoch, (Collator) prototype.clone());
+            }
+            collators.set(holder);
+        }
+        return holder;
+    }
+    
+    // "IMG_9" -> "IMG_019", "IMG_10" -> "IMG_0210": a shorter number sorts
+    // first, equal lengths by their digits, so collation orders numbers by value
+    static String padNumbers(String text) {
+        StringBuilder out = null;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                if (out != null) out.append(c);
+                i++;
+                continue;
+            }
+            
+            int start = i;
+            while (i < length && text.charAt(i) >= '0' && text.charAt(i) <= '9') i++;
+            int digitsStart = start;
+            while (digitsStart < i - 1 && text.charAt(digitsStart) == '0') digitsStart++;
+            int digits = i - digitsStart;
+            
+            if (out == null) {
+                out = new StringBuilder(length + 8);
+                out.append(text, 0, start);
+            }
+            if (digits <= MAX_NUMBER_DIGITS) {
+                out.append((char) ('0' + digits / 10)).append((char) ('0' + digits % 10));
+                out.append(text, digitsStart, i);
+            } else {
+                out.append(text, start, i);
+            }
+        }
+        return out != null ? out.toString() : text;
+    }
+    
+    private static int compareKeys(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+    
+    private static synchronized void checkLocale() {
+        Locale locale = Locale.getDefault();
+        if (!locale.equals(keyLocale)) {
+            Collator collator = Collator.getInstance(locale);
+            // Case-insensitive, but accents still count
+            collator.setStrength(Collator.SECONDARY);
+            prototype = collator;
+            keyLocale = locale;
+            keyEpoch++;
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.filemanager;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.Size;
+import com.filemanager.models.FileItem;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Thumbnails for image and video rows. Decodes at the size the row shows,
+// keeps recent bitmaps in a byte-bounded memory LRU and every thumbnail in a
+// byte-bounded disk cache, both keyed by path, size, mtime and pixel size.
+// Rows on screen are decoded newest first, ahead of prefetches; a request
+// whose row was recycled is cancelled, mid-decode if it already started.
+// Requests and callbacks are main-thread only.
+public class ThumbnailLoader {
+    
+    private static final String TAG = "ThumbnailLoader";
+    
+    private static final int THREADS = 2;
+    private static final long MAX_DISK_BYTES = 64L * 1024 * 1024;
+    private static final int DISK_QUALITY = 80;
+    private static final String DISK_DIRECTORY = "thumbnails";
+    
+    private static final int PRIORITY_VISIBLE = 0;
+    private static final int PRIORITY_PREFETCH = 1;
+    
+    private static ThumbnailLoader instance;
+    
+    public interface Target {
+        // Main thread; not called once the request is cancelled
+        void onThumbnail(Bitmap bitmap);
+    }
+    
+    // What a row holds on to so it can cancel when it is recycled or rebound
+    public class Request {
+        private final Task task;
+        private final Target target;
+        
+        Request(Task task, Target target) {
+            this.task = task;
+            this.target = target;
+        }
+        
+        public void cancel() {
+            detach(task, target);
+        }
+    }
+    
+    private class Task implements Runnable {
+        final String key;
+        final String path;
+        final boolean video;
+        final int sizePx;
+        final long sequence;
+        final CancellationSignal signal = new CancellationSignal();
+        // Guarded by ThumbnailLoader.this
+        final List<Target> targets = new ArrayList<>(1);
+        int priority;
+        boolean started;
+        boolean done;
+        
+        Task(String key, FileItem item, int sizePx, int priority, long sequence) {
+            this.key = key;
+            this.path = item.getPath();
+            this.video = item.getCategory() == FileCategory.VIDEO;
+            this.sizePx = sizePx;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+        
+        @Override
+        public void run() {
+            synchronized (ThumbnailLoader.this) {
+                if (signal.isCanceled()) return;
+                started = true;
+            }
+            Bitmap bitmap = load(this);
+            
+            mainHandler.post(() -> {
+                List<Target> delivered;
+                synchronized (ThumbnailLoader.this) {
+                    done = true;
+                    if (inFlight.get(key) == this) inFlight.remove(key);
+                    prefetches.remove(this);
+                    delivered = new ArrayList<>(targets);
+                }
+                if (bitmap == null) return;
+                for (Target target : delivered) {
+                    target.onThumbnail(bitmap);
+                }
+            });
+        }
+    }
+    
+    // Rows on screen first, the most recently bound first (after a fling
+    // those are the ones still visible); prefetches nearest first
+    private static final Comparator<Runnable> TASK_ORDER = (a, b) -> {
+        ThumbnailLoader.Task x = (ThumbnailLoader.Task) a;
+        ThumbnailLoader.Task y = (ThumbnailLoader.Task) b;
+        if (x.priority != y.priority) return Integer.compare(x.priority, y.priority);
+        return x.priority == PRIORITY_VISIBLE
+                ? Long.compare(y.sequence, x.sequence)
+                : Long.compare(x.sequence, y.sequence);
+    };
+    
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS,
+            0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(64, TASK_ORDER));
+    private final LruCache<String, Bitmap> memoryCache;
+    private final DiskCache diskCache;
+    // Guarded by this
+    private final Map<String, Task> inFlight = new HashMap<>();
+    private final List<Task> prefetches = new ArrayList<>();
+    private long sequence;
+    
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong decodes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    
+    public static synchronized ThumbnailLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    private ThumbnailLoader(Context context) {
+        // An eighth of the heap, capped: thumbnails are cheap to reload from disk
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, 32L * 1024 * 1024);
+        memoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        };
+        diskCache = new DiskCache(new File(context.getCacheDir(), DISK_DIRECTORY), MAX_DISK_BYTES);
+    }
+    
+    public static boolean hasThumbnail(FileItem item) {
+        FileCategory category = item.getCategory();
+        return category == FileCategory.IMAGE || category == FileCategory.VIDEO;
+    }
+    
+    // A changed file has a new size or mtime and therefore a new key
+    private static String key(FileItem item, int sizePx) {
+        return item.getPath() + '\0' + item.getSize() + '\0' + item.getLastModified() + '\0' + sizePx;
+    }
+    
+    // A bitmap already in memory is delivered right away and null is returned
+    public Request load(FileItem item, int sizePx, Target target) {
+        requests.incrementAndGet();
+        String key = key(item, sizePx);
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            memoryHits.incrementAndGet();
+            target.onThumbnail(cached);
+            return null;
+        }
+        
+        synchronized (this) {
+            Task task = inFlight.get(key);
+            if (task == null) {
+                task = new Task(key, item, sizePx, PRIORITY_VISIBLE, ++sequence);
+                inFlight.put(key, task);
+                task.targets.add(target);
+                executor.execute(task);
+            } else {
+                task.targets.add(target);
+                if (task.priority == PRIORITY_PREFETCH && !task.started && executor.remove(task)) {
+                    // A prefetch that is now on screen moves to the front
+                    prefetches.remove(task);
+                    task.priority = PRIORITY_VISIBLE;
+                    executor.execute(task);
+                }
+            }
+            return new Request(task, target);
+        }
+    }
+    
+    // Warms the caches for rows about to scroll in. Replaces the previous
+    // prefetch batch, so only the latest scroll position costs decodes.
+    public void prefetch(List<FileItem> items, int sizePx) {
+        synchronized (this) {
+            cancelPrefetches();
+            for (FileItem item : items) {
+                if (!hasThumbnail(item)) continue;
+                String key = key(item, sizePx);
+                if (inFlight.containsKey(key) || memoryCache.get(key) != null) continue;
+                
+                Task task = new Task(key, item, sizePx, PRIORITY_PREFETCH, ++sequence);
+                inFlight.put(key, task);
+                prefetches.add(task);
+                executor.execute(task);
+            }
+        }
+    }
+    
+    public synchronized void cancelPrefetches() {
+        for (Task task : prefetches) {
+            if (task.targets.isEmpty()) {
+                cancel(task);
+            }
+        }
+        prefetches.clear();
+    }
+    
+    private synchronized void detach(Task task, Target target) {
+        task.targets.remove(target);
+        if (task.targets.isEmpty() && !prefetches.contains(task)) {
+            cancel(task);
+        }
+    }
+    
+    // Guarded by this
+    private void cancel(Task task) {
+        if (task.done) return;
+        if (inFlight.get(task.key) == task) {
+            inFlight.remove(task.key);
+        }
+        if (!task.started) {
+            executor.remove(task);
+        }
+        if (!task.signal.isCanceled()) {
+            task.signal.cancel();
+            cancelled.incrementAndGet();
+        }
+    }
+    
+    private Bitmap load(Task task) {
+        Bitmap bitmap = diskCache.get(task.key);
+        if (bitmap != null) {
+            diskHits.incrementAndGet();
+            memoryCache.put(task.key, bitmap);
+            return bitmap;
+        }
+        
+        long start = System.nanoTime();
+        try {
+            bitmap = decode(task);
+        } catch (OperationCanceledException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            Log.w(TAG, "No thumbnail for " + task.path + ": " + e.getMessage());
+            return null;
+        }
+        decodes.incrementAndGet();
+        decodeNanos.addAndGet(System.nanoTime() - start);
+        
+        memoryCache.put(task.key, bitmap);
+        diskCache.put(task.key, bitmap);
+        return bitmap;
+    }
+    
+    // Decoders subsample to about the target size and honour EXIF rotation;
+    // the result is center-cropped to the square the row shows
+    private static Bitmap decode(Task task) throws IOException {
+        File file = new File(task.path);
+        Size size = new Size(task.sizePx, task.sizePx);
+        Bitmap bitmap = task.video
+                ? ThumbnailUtils.createVideoThumbnail(file, size, task.signal)
+                : ThumbnailUtils.createImageThumbnail(file, size, task.signal);
+        return ThumbnailUtils.extractThumbnail(bitmap, task.sizePx, task.sizePx,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+    }
+    
+    public void trimMemory() {
+        memoryCache.evictAll();
+    }
+    
+    public void logStats() {
+        long total = requests.get();
+        long decoded = decodes.get();
+        long hits = memoryHits.get() + diskHits.get();
+        Log.d(TAG, "Thumbnails: " + total + " requests, hit rate "
+                + (total > 0 ? hits * 100 / total : 0) + "% (memory " + memoryHits.get()
+                + ", disk " + diskHits.get() + "), " + decoded + " decodes averaging "
+                + (decoded > 0 ? decodeNanos.get() / decoded / 1_000_000 : 0) + " ms, "
+                + failures.get() + " failed, " + cancelled.get() + " cancelled, memory "
+                + memoryCache.size() / 1024 + "/" + memoryCache.maxSize() / 1024 + " KB, disk "
+                + diskCache.size() / 1024 + " KB");
+    }
+    
+    // One WebP file per thumbnail, named by a hash of the key. An access-
+    // ordered index is built from the directory on first use; the least
+    // recently used files go once the total passes maxBytes.
+    private static class DiskCache {
+        private final File directory;
+        private final long maxBytes;
+        // File name to byte size, least recently used first
+        private LinkedHashMap<String, Long> index;
+        private long totalBytes;
+        
+        DiskCache(File directory, long maxBytes) {
+            this.directory = directory;
+            this.maxBytes = maxBytes;
+        }
+        
+        Bitmap get(String key) {
+            String name = fileName(key);
+            synchronized (this) {
+                ensureIndex();
+                if (index.get(name) == null) return null;
+            }
+            File file = new File(directory, name);
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap == null) {
+                remove(name);
+                return null;
+            }
+            // Keeps the order across restarts, where the index is rebuilt by mtime
+            file.setLastModified(System.currentTimeMillis());
+            return bitmap;
+        }
+        
+        void put(String key, Bitmap bitmap) {
+            String name = fileName(key);
+            File file = new File(directory, name);
+            File temp = new File(directory, name + ".tmp");
+            try (OutputStream out = new FileOutputStream(temp)) {
+                bitmap.compress(Bitmap.CompressFormat.WEBP_LOSSY, DISK_QUALITY, out);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write thumbnail: " + e.getMessage());
+                temp.delete();
+                return;
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+            
+            synchronized (this) {
+                ensureIndex();
+                Long previous = index.put(name, file.length());
+                totalBytes += file.length() - (previous != null ? previous : 0);
+                trim();
+            }
+        }
+        
+        private synchronized void remove(String name) {
+            Long bytes = index.remove(name);
+            if (bytes != null) totalBytes -= bytes;
+            new File(directory, name).delete();
+        }
+        
+        synchronized long size() {
+            return totalBytes;
+        }
+        
+        private void trim() {
+            Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<String, Long> eldest = iterator.next();
+                totalBytes -= eldest.getValue();
+                new File(directory, eldest.getKey()).delete();
+                iterator.remove();
+            }
+        }
+        
+        private void ensureIndex() {
+            if (index != null) return;
+            index = new LinkedHashMap<>(256, 0.75f, true);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                Log.e(TAG, "Cannot create thumbnail cache: " + directory);
+                return;
+            }
+            
+            File[] files = directory.listFiles();
+            if (files == null) return;
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                    continue;
+                }
+                index.put(file.getName(), file.length());
+                totalBytes += file.length();
+            }
+            trim();
+        }
+        
+        // 64-bit FNV-1a; collisions are negligible at cache sizes
+        private static String fileName(String key) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                hash ^= key.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return Long.toHexString(hash) + ".webp";
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package com.filemanager.adapters;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -11,18 +15,42 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
-import com.filemanager.FileTypeDetector;
-import com.filemanager.FileUtils;
+import com.filemanager.ContentSniffer;
+import com.filemanager.FileCategory;
+import com.filemanager.DisplayFormatter;
 import com.filemanager.R;
+import com.filemanager.ThumbnailLoader;
 import com.filemanager.models.FileItem;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import com.filemanager.models.RowDisplay;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class FileListAdapter extends RecyclerView.Adapter<FileListAdapter.FileViewHolder> {
     
+    private static final String TAG = "FileListAdapter";
+    
+    // Partial rebinds that leave the rest of the row untouched
+    private static final Object PAYLOAD_SELECTION_MODE = new Object();
+    private static final Object PAYLOAD_DIVIDER = new Object();
+    
+    public static final int VIEW_TYPE_LIST = 0;
+    public static final int VIEW_TYPE_GRID = 1;
+    
+    // Thumbnails fill the 40dp list icon inside its 4dp padding, or the
+    // whole 80dp grid icon
+    private static final int LIST_THUMBNAIL_DP = 32;
+    private static final int GRID_THUMBNAIL_DP = 80;
+    
+    // Diffs of large listings are computed here, never on the main thread
+    private static final ExecutorService diffExecutor = Executors.newSingleThreadExecutor();
+    
     public interface OnFileClickListener {
         void onFileClick(FileItem fileItem, int position);
         void onFileLongClick(FileItem fileItem, int position);
@@ -32,39 +60,202 @@ public class FileListAdapter extends RecyclerView.Adapter<FileListAdapter.FileVi
     private List<FileItem> fileList;
     private OnFileClickListener listener;
     private boolean selectionMode = false;
-    private SimpleDateFormat dateFormat;
+    private final SelectionModel selection = new SelectionModel();
+    private final ThumbnailLoader thumbnailLoader;
+    private boolean gridMode;
+    private int thumbnailSize;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Bumped by every list change so a diff computed against an older list is dropped
+    private int listGeneration;
     
     public FileListAdapter(Context context, List<FileItem> fileList, OnFileClickListener listener) {
         this.context = context;
         this.fileList = fileList;
         this.listener = listener;
-        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
+        selection.onListChanged(fileList, fileList);
+        this.thumbnailLoader = ThumbnailLoader.getInstance(context);
+        this.thumbnailSize = dpToPx(LIST_THUMBNAIL_DP);
+        setHasStableIds(true);
     }
     
     public void setSelectionMode(boolean selectionMode) {
+        if (this.selectionMode == selectionMode) return;
         this.selectionMode = selectionMode;
+        selection.clear();
+        notifyItemRangeChanged(0, fileList.size(), PAYLOAD_SELECTION_MODE);
+    }
+    
+    private int dpToPx(int dp) {
+        return Math.round(dp * context.getResources().getDisplayMetrics().density);
+    }
+    
+    // Same items, other cells: every row is rebound with the new view type
+    public void setGridMode(boolean gridMode) {
+        if (this.gridMode == gridMode) return;
+        this.gridMode = gridMode;
+        thumbnailSize = dpToPx(gridMode ? GRID_THUMBNAIL_DP : LIST_THUMBNAIL_DP);
+        thumbnailLoader.cancelPrefetches();
+        notifyDataSetChanged();
+    }
+    
+    public boolean isGridMode() { return gridMode; }
+    
+    public SelectionModel getSelection() { return selection; }
+    
+    public List<FileItem> getSelectedItems() {
+        return selection.getSelectedItems(fileList);
+    }
+    
+    // Selection changes rebind only the checkbox of the affected rows
+    public void toggleSelection(int position) {
+        selection.toggle(position);
+        notifyItemChanged(position, PAYLOAD_SELECTION_MODE);
+    }
+    
+    // Shift-style: selects everything between the last toggled row and position
+    public void selectRangeTo(int position) {
+        int anchor = selection.getAnchor();
+        if (anchor < 0) {
+            toggleSelection(position);
+            return;
+        }
+        selection.selectRange(anchor, position);
+        int from = Math.min(anchor, position);
+        notifyItemRangeChanged(from, Math.abs(position - anchor) + 1, PAYLOAD_SELECTION_MODE);
+    }
+    
+    public void selectAll() {
+        selection.selectAll();
+        notifyItemRangeChanged(0, fileList.size(), PAYLOAD_SELECTION_MODE);
+    }
+    
+    public void invertSelection() {
+        selection.invert();
+        notifyItemRangeChanged(0, fileList.size(), PAYLOAD_SELECTION_MODE);
+    }
+    
+    public void clearSelection() {
+        selection.clear();
+        notifyItemRangeChanged(0, fileList.size(), PAYLOAD_SELECTION_MODE);
+    }
+    
+    // Stable across reloads, so RecyclerView can keep and animate rows by file
+    @Override
+    public long getItemId(int position) {
+        return stableId(fileList.get(position));
+    }
+    
+    // 64-bit FNV-1a of the path, hashed in parts so no path String is built;
+    // collisions are negligible at listing sizes
+    static long stableId(FileItem item) {
+        String parent = item.getParentPath();
+        long hash = fnv(0xcbf29ce484222325L, parent);
+        if (!parent.isEmpty() && !parent.endsWith("/")) {
+            hash = (hash ^ '/') * 0x100000001b3L;
+        }
+        return fnv(hash, item.getName());
+    }
+    
+    private static long fnv(long hash, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
     }
     
     @NonNull
     @Override
     public FileViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        int layout = viewType == VIEW_TYPE_GRID ? R.layout.file_grid_item : R.layout.file_item;
         View view = LayoutInflater.from(parent.getContext())
-                .inflate(R.layout.file_item, parent, false);
+                .inflate(layout, parent, false);
         return new FileViewHolder(view);
     }
     
+    @Override
+    public int getItemViewType(int position) {
+        return gridMode ? VIEW_TYPE_GRID : VIEW_TYPE_LIST;
+    }
+    
     @Override
     public void onBindViewHolder(@NonNull FileViewHolder holder, int position) {
         FileItem fileItem = fileList.get(position);
         holder.bind(fileItem, position);
     }
     
+    @Override
+    public void onBindViewHolder(@NonNull FileViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        for (Object payload : payloads) {
+            if (payload == PAYLOAD_SELECTION_MODE) {
+                holder.bindSelectionMode(position);
+            } else if (payload == PAYLOAD_DIVIDER) {
+                holder.bindDivider(position);
+            } else {
+                onBindViewHolder(holder, position);
+                return;
+            }
+        }
+    }
+    
     @Override
     public int getItemCount() {
         return fileList.size();
     }
     
-    class FileViewHolder extends RecyclerView.ViewHolder {
+    // A recycled row must not keep a decode for a row it no longer shows
+    @Override
+    public void onViewRecycled(@NonNull FileViewHolder holder) {
+        holder.cancelThumbnail();
+    }
+    
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(prefetchListener);
+    }
+    
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(prefetchListener);
+        thumbnailLoader.cancelPrefetches();
+    }
+    
+    // Decodes the thumbnails of the next screenful in the scroll direction.
+    // A new batch is only issued after half a screen, so slow scrolling
+    // doesn't keep replacing it.
+    private final RecyclerView.OnScrollListener prefetchListener = new RecyclerView.OnScrollListener() {
+        private int lastFirst = RecyclerView.NO_POSITION;
+        
+        @Override
+        public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+            if (dy == 0 || !(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) return;
+            LinearLayoutManager layout = (LinearLayoutManager) recyclerView.getLayoutManager();
+            int first = layout.findFirstVisibleItemPosition();
+            int last = layout.findLastVisibleItemPosition();
+            if (first == RecyclerView.NO_POSITION) return;
+            
+            int screen = last - first + 1;
+            if (lastFirst != RecyclerView.NO_POSITION && Math.abs(first - lastFirst) < Math.max(1, screen / 2)) return;
+            lastFirst = first;
+            
+            int from = dy > 0 ? last + 1 : first - screen;
+            int to = dy > 0 ? last + screen : first - 1;
+            List<FileItem> ahead = new ArrayList<>(screen);
+            for (int i = Math.max(0, from); i <= Math.min(to, fileList.size() - 1); i++) {
+                ahead.add(fileList.get(i));
+            }
+            // Nearest first: the batch is decoded in order
+            if (dy < 0) Collections.reverse(ahead);
+            thumbnailLoader.prefetch(ahead, thumbnailSize);
+        }
+    };
+    
+    class FileViewHolder extends RecyclerView.ViewHolder
+            implements ContentSniffer.Callback, ThumbnailLoader.Target {
         private LinearLayout container;
         private ImageView ivIcon;
         private ImageView ivHidden;
@@ -74,6 +265,11 @@ public class FileListAdapter extends RecyclerView.Adapter<FileListAdapter.FileVi
         private TextView tvExtension;
         private CheckBox cbSelect;
         private View divider;
+        // Grid cells only have the icon and the name; the rest stays null
+        private final boolean grid;
+        // Read by the sniffer pool to skip rows that were rebound meanwhile
+        private volatile FileItem boundItem;
+        private ThumbnailLoader.Request thumbnailRequest;
         
         FileViewHolder(@NonNull View itemView) {
             super(itemView);
@@ -86,46 +282,50 @@ public class FileListAdapter extends RecyclerView.Adapter<FileListAdapter.FileVi
             tvExtension = itemView.findViewById(R.id.tv_extension);
             cbSelect = itemView.findViewById(R.id.cb_select);
             divider = itemView.findViewById(R.id.divider);
+            grid = tvSize == null;
+            
+            container.setBackgroundResource(R.drawable.bg_file_item);
+            // The row click toggles the selection model; the box only shows it
+            cbSelect.setClickable(false);
+            
+            // Listeners are set once per holder and look the row up at click
+            // time, so binding allocates nothing and moved rows stay correct
+            container.setOnClickListener(v -> {
+                int position = getBindingAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) return;
+                listener.onFileClick(fileList.get(position), position);
+            });
+            
+            container.setOnLongClickListener(v -> {
+                int position = getBindingAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) return false;
+                listener.onFileLongClick(fileList.get(position), position);
+                return true;
+            });
         }
         
         void bind(FileItem fileItem, int position) {
-            // Set file name
             tvName.setText(fileItem.getName());
-            
-            // Set file size
-            if (fileItem.isDirectory()) {
-                tvSize.setText("Folder");
-            } else {
-                String sizeText = FileUtils.formatFileSize(fileItem.getSize());
-                tvSize.setText(sizeText);
+            if (!grid) {
+                // Strings are normally prepared by the loader; only rows whose
+                // item changed since (e.g. a folder size update) format here
+                RowDisplay display = fileItem.getRowDisplay();
+                if (!DisplayFormatter.isCurrent(display, fileItem)) {
+                    display = DisplayFormatter.prepare(fileItem);
+                }
+                tvSize.setText(display.getSizeText());
+                tvDate.setText(display.getDateText());
+                tvExtension.setText(display.getBadgeText());
             }
             
-            // Set date
-            String dateText = dateFormat.format(new Date(fileItem.getLastModified()));
-            tvDate.setText(dateText);
-            
-            // Set extension
-            if (fileItem.isDirectory()) {
-                tvExtension.setText("DIR");
-                tvExtension.setBackgroundResource(R.drawable.bg_extension_folder);
-            } else {
-                String ext = fileItem.getExtension().toUpperCase();
-                if (ext.length() > 4) ext = ext.substring(0, 4);
-                tvExtension.setText(ext);
-                
-                // Set extension background based on file type
-                int bgResource = FileTypeDetector.getExtensionBackground(fileItem.getExtension());
-                tvExtension.setBackgroundResource(bgResource);
+            // Icon, tint and badge come from the category resolved at listing
+            // time; files the extension can't place get their content checked
+            boundItem = fileItem;
+            bindIcon(fileItem);
+            if (ContentSniffer.needsSniffing(fileItem)) {
+                ContentSniffer.getInstance().request(fileItem, this);
             }
             
-            // Set icon
-            int iconResource = FileTypeDetector.getIconResource(fileItem);
-            ivIcon.setImageResource(iconResource);
-            
-            // Set icon color based on file type
-            int iconColor = FileTypeDetector.getIconColor(fileItem);
-            ivIcon.setColorFilter(ContextCompat.getColor(context, iconColor));
-            
             // Show/hide hidden indicator
             if (fileItem.isHidden()) {
                 ivHidden.setVisibility(View.VISIBLE);
@@ -135,44 +335,218 @@ public class FileListAdapter extends RecyclerView.Adapter<FileListAdapter.FileVi
                 container.setAlpha(1.0f);
             }
             
-            // Selection mode
+            bindSelectionMode(position);
+            bindDivider(position);
+        }
+        
+        // The tinted category icon, replaced by a thumbnail once it is decoded
+        private void bindIcon(FileItem fileItem) {
+            cancelThumbnail();
+            bindCategory(fileItem.getCategory());
+            if (ThumbnailLoader.hasThumbnail(fileItem)) {
+                thumbnailRequest = thumbnailLoader.load(fileItem, thumbnailSize, this);
+            }
+        }
+        
+        void cancelThumbnail() {
+            if (thumbnailRequest != null) {
+                thumbnailRequest.cancel();
+                thumbnailRequest = null;
+            }
+        }
+        
+        @Override
+        public void onThumbnail(Bitmap bitmap) {
+            ivIcon.clearColorFilter();
+            ivIcon.setImageBitmap(bitmap);
+        }
+        
+        private void bindCategory(FileCategory category) {
+            if (!grid) {
+                tvExtension.setBackgroundResource(category.getBadgeBackground());
+            }
+            ivIcon.setImageResource(category.getIconResource());
+            ivIcon.setColorFilter(ContextCompat.getColor(context, category.getColorResource()));
+        }
+        
+        @Override
+        public boolean isStillNeeded(FileItem item) {
+            return boundItem == item;
+        }
+        
+        @Override
+        public void onDetected(FileItem item, ContentSniffer.Detection detection) {
+            if (boundItem == item && detection.isKnown()) {
+                bindIcon(item);
+            }
+        }
+        
+        void bindSelectionMode(int position) {
             if (selectionMode) {
                 cbSelect.setVisibility(View.VISIBLE);
-                cbSelect.setChecked(false); // Reset state
+                // From the model, so recycled rows never show another row's state
+                cbSelect.setChecked(selection.isSelected(position));
             } else {
                 cbSelect.setVisibility(View.GONE);
             }
+        }
+        
+        void bindDivider(int position) {
+            if (grid) return;
+            divider.setVisibility(position == fileList.size() - 1 ? View.GONE : View.VISIBLE);
+        }
+    }
+    
+    public void updateData(List<FileItem> newFileList) {
+        submitList(newFileList, null);
+    }
+    
+    // For re-sorts: nearly every row moves, so rebinding the visible rows is
+    // cheaper than diffing; stable ids still let RecyclerView keep the views
+    public void setItems(List<FileItem> items) {
+        listGeneration++;
+        selection.onListChanged(fileList, items);
+        fileList.clear();
+        fileList.addAll(items);
+        notifyDataSetChanged();
+    }
+    
+    public void clear() {
+        listGeneration++;
+        int oldSize = fileList.size();
+        selection.clear();
+        selection.onListChanged(fileList, Collections.emptyList());
+        if (oldSize == 0) return;
+        fileList.clear();
+        notifyItemRangeRemoved(0, oldSize);
+    }
+    
+    // Replaces the list with newFileList, sorted by comparator if one is given.
+    // Sort and diff run on a background thread against snapshots; only the
+    // changed ranges are dispatched, so reloading an unchanged directory does
+    // no work on the main thread.
+    public void submitList(List<FileItem> newFileList, Comparator<FileItem> comparator) {
+        int generation = ++listGeneration;
+        List<FileItem> oldSnapshot = new ArrayList<>(fileList);
+        List<FileItem> newSnapshot = new ArrayList<>(newFileList);
+        
+        diffExecutor.execute(() -> {
+            long start = System.nanoTime();
+            if (comparator != null) {
+                Collections.sort(newSnapshot, comparator);
+            }
+            // New folder totals and sort changes reorder rows; detected moves
+            // keep those rows animated and the scroll position anchored
+            DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new ListDiff(oldSnapshot, newSnapshot), true);
+            long diffNanos = System.nanoTime() - start;
             
-            // Set border
-            container.setBackgroundResource(R.drawable.bg_file_item);
-            
-            // Set click listeners
-            container.setOnClickListener(v -> {
-                if (selectionMode) {
-                    cbSelect.setChecked(!cbSelect.isChecked());
-                    listener.onFileClick(fileItem, position);
-                } else {
-                    listener.onFileClick(fileItem, position);
+            mainHandler.post(() -> {
+                if (generation != listGeneration) return;
+                
+                int oldSize = fileList.size();
+                selection.onListChanged(fileList, newSnapshot);
+                fileList.clear();
+                fileList.addAll(newSnapshot);
+                diff.dispatchUpdatesTo(this);
+                
+                // The last row hides its divider, so only the row that was last
+                // and the row that is last now may need it changed
+                int newLast = fileList.size() - 1;
+                int oldLast = oldSize > 0
+                        ? diff.convertOldPositionToNew(oldSize - 1) : DiffUtil.DiffResult.NO_POSITION;
+                if (oldLast != newLast) {
+                    if (oldLast != DiffUtil.DiffResult.NO_POSITION) {
+                        notifyItemChanged(oldLast, PAYLOAD_DIVIDER);
+                    }
+                    if (newLast >= 0) {
+                        notifyItemChanged(newLast, PAYLOAD_DIVIDER);
+                    }
                 }
+                Log.d(TAG, "Diffed " + oldSize + " -> " + fileList.size() + " rows in "
+                        + diffNanos / 1_000_000 + " ms");
             });
-            
-            container.setOnLongClickListener(v -> {
-                listener.onFileLongClick(fileItem, position);
-                return true;
-            });
-            
-            // Divider visibility
-            if (position == fileList.size() - 1) {
-                divider.setVisibility(View.GONE);
-            } else {
-                divider.setVisibility(View.VISIBLE);
-            }
+        });
+    }
+    
+    private static class ListDiff extends DiffUtil.Callback {
+        private final List<FileItem> oldList;
+        private final List<FileItem> newList;
+        
+        ListDiff(List<FileItem> oldList, List<FileItem> newList) {
+            this.oldList = oldList;
+            this.newList = newList;
+        }
+        
+        @Override
+        public int getOldListSize() { return oldList.size(); }
+        
+        @Override
+        public int getNewListSize() { return newList.size(); }
+        
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return oldList.get(oldPosition).hasSamePath(newList.get(newPosition));
+        }
+        
+        // Everything a row displays. An item updated in place (folder totals
+        // from the usage index) is the same object in both lists, but its row
+        // strings no longer match it, which is what marks it changed.
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            FileItem a = oldList.get(oldPosition);
+            FileItem b = newList.get(newPosition);
+            RowDisplay display = b.getRowDisplay();
+            return a.getSize() == b.getSize()
+                    && a.getLastModified() == b.getLastModified()
+                    && a.getFileCount() == b.getFileCount()
+                    && a.isDirectory() == b.isDirectory()
+                    && a.isHidden() == b.isHidden()
+                    && (display == null || display.matches(b));
         }
     }
     
-    public void updateData(List<FileItem> newFileList) {
+    // Merges an already sorted chunk into the sorted list and notifies only the
+    // inserted ranges, so rows that are already on screen are not rebound.
+    public void mergeSorted(List<FileItem> sortedChunk, Comparator<FileItem> comparator) {
+        if (sortedChunk.isEmpty()) return;
+        listGeneration++;
+        
+        int oldSize = fileList.size();
+        List<FileItem> merged = new ArrayList<>(oldSize + sortedChunk.size());
+        List<int[]> insertedRanges = new ArrayList<>();
+        
+        int i = 0, j = 0;
+        while (i < oldSize || j < sortedChunk.size()) {
+            boolean takeNew = i >= oldSize
+                    || (j < sortedChunk.size() && comparator.compare(sortedChunk.get(j), fileList.get(i)) < 0);
+            if (takeNew) {
+                int position = merged.size();
+                int[] last = insertedRanges.isEmpty() ? null : insertedRanges.get(insertedRanges.size() - 1);
+                if (last != null && last[0] + last[1] == position) {
+                    last[1]++;
+                } else {
+                    insertedRanges.add(new int[]{position, 1});
+                }
+                merged.add(sortedChunk.get(j++));
+            } else {
+                merged.add(fileList.get(i++));
+            }
+        }
+        
+        selection.onListChanged(fileList, merged);
         fileList.clear();
-        fileList.addAll(newFileList);
-        notifyDataSetChanged();
+        fileList.addAll(merged);
+        
+        // Ranges are in ascending order of final position, so each one is valid
+        // once the ranges before it have been applied
+        for (int[] range : insertedRanges) {
+            notifyItemRangeInserted(range[0], range[1]);
+        }
+        
+        // The previous last row has to show its divider again
+        int[] tail = insertedRanges.get(insertedRanges.size() - 1);
+        if (oldSize > 0 && tail[0] + tail[1] == fileList.size()) {
+            notifyItemChanged(tail[0] - 1, PAYLOAD_DIVIDER);
+        }
     }
 }
@@ -0,0 +1,99 @@
+package com.filemanager.adapters;
+
+import com.filemanager.models.FileItem;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// Selected rows of the file list as a bitset over positions. Toggling and
+// lookups are O(1); select-all, invert and ranges are word-wide bit
+// operations. When the list changes, the selection follows the items by
+// their stable ids, so re-sorts, reloads and streamed chunks keep it.
+// Main thread only.
+public class SelectionModel {
+    
+    private final BitSet selected = new BitSet();
+    private int size;
+    // Where the last toggle happened; range selection extends from here
+    private int anchor = -1;
+    
+    public boolean isSelected(int position) {
+        return selected.get(position);
+    }
+    
+    public boolean isEmpty() {
+        return selected.isEmpty();
+    }
+    
+    public int count() {
+        return selected.cardinality();
+    }
+    
+    public int getAnchor() { return anchor; }
+    
+    public void toggle(int position) {
+        selected.flip(position);
+        anchor = position;
+    }
+    
+    // Selects from..to inclusive, in either order
+    public void selectRange(int from, int to) {
+        selected.set(Math.min(from, to), Math.max(from, to) + 1);
+        anchor = to;
+    }
+    
+    public void selectAll() {
+        selected.set(0, size);
+    }
+    
+    public void invert() {
+        selected.flip(0, size);
+    }
+    
+    public void clear() {
+        selected.clear();
+        anchor = -1;
+    }
+    
+    // In list order
+    public List<FileItem> getSelectedItems(List<FileItem> items) {
+        List<FileItem> result = new ArrayList<>(count());
+        for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+            result.add(items.get(i));
+        }
+        return result;
+    }
+    
+    // Must be called before the adapter's list is replaced. Selected items
+    // that are still listed keep their selection at their new positions;
+    // O(n log k) for k selected rows, O(1) when nothing is selected.
+    void onListChanged(List<FileItem> oldList, List<FileItem> newList) {
+        size = newList.size();
+        if (selected.isEmpty()) {
+            anchor = -1;
+            return;
+        }
+        
+        long[] ids = new long[selected.cardinality()];
+        int count = 0;
+        for (int i = selected.nextSetBit(0); i >= 0 && i < oldList.size(); i = selected.nextSetBit(i + 1)) {
+            ids[count++] = FileListAdapter.stableId(oldList.get(i));
+        }
+        boolean hadAnchor = anchor >= 0 && anchor < oldList.size();
+        long anchorId = hadAnchor ? FileListAdapter.stableId(oldList.get(anchor)) : 0;
+        Arrays.sort(ids, 0, count);
+        
+        selected.clear();
+        anchor = -1;
+        for (int i = 0; i < newList.size(); i++) {
+            long id = FileListAdapter.stableId(newList.get(i));
+            if (Arrays.binarySearch(ids, 0, count, id) >= 0) {
+                selected.set(i);
+            }
+            if (hadAnchor && id == anchorId) {
+                anchor = i;
+            }
+        }
+    }
+}
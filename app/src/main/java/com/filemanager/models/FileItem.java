@@ -1,32 +1,109 @@
 package com.filemanager.models;
 
+import com.filemanager.FileCategory;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One directory entry. Laid out for listings of 100k+ entries: the parent
+// path is a single String shared by the whole listing and the full path is
+// only built for items that are asked for it, extensions are interned, and
+// the type, permission and category bits are packed into one int. Loaded
+// items also carry the name's collation key and the preformatted row
+// strings, which together usually outweigh the fields above.
 public class FileItem {
+    
+    private static final int DIRECTORY = 1;
+    private static final int HIDDEN = 1 << 1;
+    private static final int READABLE = 1 << 2;
+    private static final int WRITABLE = 1 << 3;
+    private static final int EXECUTABLE = 1 << 4;
+    // Category ordinal + 1, 0 while it is not resolved
+    private static final int CATEGORY_SHIFT = 8;
+    private static final int CATEGORY_MASK = 0x1F << CATEGORY_SHIFT;
+    private static final FileCategory[] CATEGORIES = FileCategory.values();
+    
+    // A listing has a handful of distinct extensions, so each is kept once;
+    // capped so odd names can't grow the pool without bound
+    private static final int MAX_INTERNED_EXTENSIONS = 4096;
+    private static final ConcurrentHashMap<String, String> extensions = new ConcurrentHashMap<>();
+    
+    private String parent; // Shared by every item of a listing
     private String name;
-    private String path;
-    private String extension;
-    private boolean isDirectory;
-    private boolean isHidden;
+    private String path; // Built on the first getPath() call
+    private String extension; // Interned, lower case
+    private int flags;
     private long size;
     private long lastModified;
-    private boolean readable;
-    private boolean writable;
-    private boolean executable;
+    private long fileCount = -1; // Files below a directory, -1 if not known
+    private byte[] nameSortKey; // Collation key built by SortEngine
+    private byte[] typeSortKey; // Extension collation key, shared across items
+    private int sortKeyEpoch; // Of both keys
+    private RowDisplay rowDisplay; // Preformatted row strings
     
     // Getters and Setters
     public String getName() { return name; }
-    public void setName(String name) { this.name = name; }
+    public void setName(String name) {
+        this.name = name;
+        this.path = null;
+        this.nameSortKey = null;
+    }
+    
+    // Kept once built, so rows that are bound, selected or thumbnailed pay
+    // for their path only once and the rest of the listing never does
+    public String getPath() {
+        if (path == null && parent != null) {
+            path = parent.isEmpty() ? name
+                    : parent.endsWith("/") ? parent + name : parent + '/' + name;
+        }
+        return path;
+    }
     
-    public String getPath() { return path; }
-    public void setPath(String path) { this.path = path; }
+    public void setPath(String path) {
+        int slash = path.lastIndexOf('/');
+        setLocation(slash > 0 ? path.substring(0, slash) : slash == 0 ? "/" : "", path.substring(slash + 1));
+    }
+    
+    public String getParentPath() { return parent; }
+    
+    // Listers pass the same parent String for every entry of a directory
+    public void setLocation(String parent, String name) {
+        if (!parent.equals(this.parent)) {
+            this.path = null;
+        }
+        this.parent = parent;
+        if (!name.equals(this.name)) {
+            setName(name);
+        }
+    }
+    
+    public boolean hasSamePath(FileItem other) {
+        return Objects.equals(name, other.name) && Objects.equals(parent, other.parent);
+    }
     
     public String getExtension() { return extension; }
-    public void setExtension(String extension) { this.extension = extension; }
+    public void setExtension(String extension) {
+        this.extension = intern(extension);
+        this.typeSortKey = null;
+        setCategory(null);
+    }
     
-    public boolean isDirectory() { return isDirectory; }
-    public void setDirectory(boolean directory) { isDirectory = directory; }
+    private static String intern(String extension) {
+        if (extension == null) return null;
+        String interned = extensions.get(extension);
+        if (interned != null) return interned;
+        if (extensions.size() >= MAX_INTERNED_EXTENSIONS) return extension;
+        interned = extensions.putIfAbsent(extension, extension);
+        return interned != null ? interned : extension;
+    }
     
-    public boolean isHidden() { return isHidden; }
-    public void setHidden(boolean hidden) { isHidden = hidden; }
+    public boolean isDirectory() { return (flags & DIRECTORY) != 0; }
+    public void setDirectory(boolean directory) {
+        setFlag(DIRECTORY, directory);
+        setCategory(null);
+    }
+    
+    public boolean isHidden() { return (flags & HIDDEN) != 0; }
+    public void setHidden(boolean hidden) { setFlag(HIDDEN, hidden); }
     
     public long getSize() { return size; }
     public void setSize(long size) { this.size = size; }
@@ -34,23 +111,63 @@ public class FileItem {
     public long getLastModified() { return lastModified; }
     public void setLastModified(long lastModified) { this.lastModified = lastModified; }
     
-    public boolean isReadable() { return readable; }
-    public void setReadable(boolean readable) { this.readable = readable; }
+    public boolean isReadable() { return (flags & READABLE) != 0; }
+    public void setReadable(boolean readable) { setFlag(READABLE, readable); }
+    
+    public boolean isWritable() { return (flags & WRITABLE) != 0; }
+    public void setWritable(boolean writable) { setFlag(WRITABLE, writable); }
+    
+    public boolean isExecutable() { return (flags & EXECUTABLE) != 0; }
+    public void setExecutable(boolean executable) { setFlag(EXECUTABLE, executable); }
+    
+    private void setFlag(int flag, boolean value) {
+        flags = value ? flags | flag : flags & ~flag;
+    }
+    
+    public long getFileCount() { return fileCount; }
+    public void setFileCount(long fileCount) { this.fileCount = fileCount; }
     
-    public boolean isWritable() { return writable; }
-    public void setWritable(boolean writable) { this.writable = writable; }
+    public byte[] getNameSortKey() { return nameSortKey; }
+    public int getSortKeyEpoch() { return sortKeyEpoch; }
+    // A key from another epoch makes the other key stale, so it is dropped
+    public void setNameSortKey(byte[] key, int epoch) {
+        if (epoch != sortKeyEpoch) typeSortKey = null;
+        this.nameSortKey = key;
+        this.sortKeyEpoch = epoch;
+    }
+    
+    public byte[] getTypeSortKey() { return typeSortKey; }
+    public void setTypeSortKey(byte[] key, int epoch) {
+        if (epoch != sortKeyEpoch) nameSortKey = null;
+        this.typeSortKey = key;
+        this.sortKeyEpoch = epoch;
+    }
+    
+    // Set by whoever builds the item, from FileTypeDetector; changing the
+    // extension or the directory flag clears it, and until it is set again
+    // the item reads as a plain folder or file
+    public FileCategory getCategory() {
+        int stored = (flags & CATEGORY_MASK) >>> CATEGORY_SHIFT;
+        if (stored != 0) return CATEGORIES[stored - 1];
+        return isDirectory() ? FileCategory.FOLDER : FileCategory.OTHER;
+    }
+    
+    public void setCategory(FileCategory category) {
+        int stored = category != null ? category.ordinal() + 1 : 0;
+        flags = (flags & ~CATEGORY_MASK) | (stored << CATEGORY_SHIFT);
+    }
     
-    public boolean isExecutable() { return executable; }
-    public void setExecutable(boolean executable) { this.executable = executable; }
+    public RowDisplay getRowDisplay() { return rowDisplay; }
+    public void setRowDisplay(RowDisplay rowDisplay) { this.rowDisplay = rowDisplay; }
     
     @Override
     public String toString() {
         return "FileItem{" +
                 "name='" + name + '\'' +
-                ", path='" + path + '\'' +
+                ", path='" + getPath() + '\'' +
                 ", extension='" + extension + '\'' +
-                ", isDirectory=" + isDirectory +
-                ", isHidden=" + isHidden +
+                ", isDirectory=" + isDirectory() +
+                ", isHidden=" + isHidden() +
                 ", size=" + size +
                 '}';
     }
@@ -0,0 +1,61 @@
+package com.filemanager.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class OperationResult {
+    
+    public static class Failure {
+        private final String path;
+        private final String reason;
+        
+        public Failure(String path, String reason) {
+            this.path = path;
+            this.reason = reason;
+        }
+        
+        public String getPath() { return path; }
+        public String getReason() { return reason; }
+        
+        @Override
+        public String toString() {
+            return path + ": " + reason;
+        }
+    }
+    
+    private long succeeded;
+    private long bytes;
+    private long elapsedNanos;
+    private boolean cancelled;
+    private final List<Failure> failures = new ArrayList<>();
+    
+    public boolean isSuccess() { return failures.isEmpty() && !cancelled; }
+    
+    public long getSucceeded() { return succeeded; }
+    public void setSucceeded(long succeeded) { this.succeeded = succeeded; }
+    
+    public long getBytes() { return bytes; }
+    public void setBytes(long bytes) { this.bytes = bytes; }
+    
+    public long getElapsedNanos() { return elapsedNanos; }
+    public void setElapsedNanos(long elapsedNanos) { this.elapsedNanos = elapsedNanos; }
+    
+    public boolean isCancelled() { return cancelled; }
+    public void setCancelled(boolean cancelled) { this.cancelled = cancelled; }
+    
+    public List<Failure> getFailures() { return Collections.unmodifiableList(failures); }
+    public void addFailure(String path, String reason) { failures.add(new Failure(path, reason)); }
+    public void addFailures(List<Failure> failures) { this.failures.addAll(failures); }
+    
+    @Override
+    public String toString() {
+        return "OperationResult{" +
+                "succeeded=" + succeeded +
+                ", failed=" + failures.size() +
+                ", bytes=" + bytes +
+                ", elapsedMs=" + elapsedNanos / 1_000_000 +
+                ", cancelled=" + cancelled +
+                '}';
+    }
+}
@@ -0,0 +1,38 @@
+package com.filemanager.models;
+
+// Preformatted strings for one list row, built off the main thread by
+// DisplayFormatter. The values they were built from are kept, so a row can
+// tell when its FileItem changed (e.g. a folder size from the usage index),
+// and the formatter's epoch, so a locale change makes it stale too.
+public class RowDisplay {
+    
+    private final String sizeText;
+    private final String dateText;
+    private final String badgeText;
+    private final long size;
+    private final long lastModified;
+    private final long fileCount;
+    private final int formatEpoch;
+    
+    public RowDisplay(String sizeText, String dateText, String badgeText,
+                      long size, long lastModified, long fileCount, int formatEpoch) {
+        this.sizeText = sizeText;
+        this.dateText = dateText;
+        this.badgeText = badgeText;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.fileCount = fileCount;
+        this.formatEpoch = formatEpoch;
+    }
+    
+    public String getSizeText() { return sizeText; }
+    public String getDateText() { return dateText; }
+    public String getBadgeText() { return badgeText; }
+    public int getFormatEpoch() { return formatEpoch; }
+    
+    public boolean matches(FileItem item) {
+        return size == item.getSize()
+                && lastModified == item.getLastModified()
+                && fileCount == item.getFileCount();
+    }
+}
@@ -0,0 +1,95 @@
+package com.filemanager.services;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.IBinder;
+import android.util.Log;
+import com.filemanager.FileUtils;
+import com.filemanager.R;
+import com.filemanager.models.OperationResult;
+
+// Foreground service that keeps the process alive while OperationScheduler
+// has work queued, so batch operations survive the Activity being recreated
+// or sent to the background. The scheduler owns the work; this only mirrors
+// its aggregate progress in a notification and stops once it is idle.
+public class FileOperationService extends Service implements OperationScheduler.Listener {
+    
+    private static final String TAG = "FileOperationService";
+    
+    private static final String CHANNEL_ID = "file_operations";
+    private static final int NOTIFICATION_ID = 1001;
+    
+    private NotificationManager notificationManager;
+    
+    public static void start(Context context) {
+        context.startForegroundService(new Intent(context, FileOperationService.class));
+    }
+    
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        notificationManager = getSystemService(NotificationManager.class);
+        notificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                getString(R.string.file_operations), NotificationManager.IMPORTANCE_LOW));
+        OperationScheduler.getInstance().addListener(this);
+    }
+    
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification(getString(R.string.file_operations), 0, 0),
+                ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        
+        // Jobs may already have finished between submit and start
+        if (OperationScheduler.getInstance().getActiveJobs().isEmpty()) {
+            stopSelf();
+        }
+        return START_NOT_STICKY;
+    }
+    
+    @Override
+    public void onDestroy() {
+        OperationScheduler.getInstance().removeListener(this);
+        super.onDestroy();
+    }
+    
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+    
+    @Override
+    public void onProgress(OperationScheduler.Progress progress) {
+        // A new job may have been queued since this snapshot was taken
+        if (progress.isIdle() && OperationScheduler.getInstance().getActiveJobs().isEmpty()) {
+            Log.d(TAG, "Scheduler idle, stopping");
+            stopForeground(STOP_FOREGROUND_REMOVE);
+            stopSelf();
+            return;
+        }
+        
+        String text = progress.getCompletedItems() + " / " + progress.getTotalItems()
+                + " · " + FileUtils.formatFileSize(progress.getBytesCopied());
+        notificationManager.notify(NOTIFICATION_ID,
+                buildNotification(text, progress.getCompletedItems(), progress.getTotalItems()));
+    }
+    
+    @Override
+    public void onJobComplete(OperationScheduler.Job job, OperationResult result) {
+    }
+    
+    private Notification buildNotification(String text, int completed, int total) {
+        return new Notification.Builder(this, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_notify_sync)
+                .setContentTitle(getString(R.string.file_operations))
+                .setContentText(text)
+                .setProgress(total, completed, total == 0)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+}
@@ -0,0 +1,466 @@
+package com.filemanager.services;
+
+import android.util.Log;
+import com.filemanager.CopyEngine;
+import com.filemanager.DeleteEngine;
+import com.filemanager.FileUtils;
+import com.filemanager.MoveEngine;
+import com.filemanager.models.OperationResult;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Process-wide queue for batch file operations. Every item of a job runs on
+// the lane of the volume it writes to; each lane is a small fixed pool, so
+// internal flash and an SD card work in parallel without either one being
+// hit by more concurrent writers than it handles well.
+public class OperationScheduler {
+    
+    private static final String TAG = "OperationScheduler";
+    
+    // Concurrent items per lane; SD cards degrade quickly with parallel writes
+    private static final int INTERNAL_LANE_WIDTH = 2;
+    private static final int SD_CARD_LANE_WIDTH = 1;
+    
+    private static final long PROGRESS_INTERVAL_NANOS = 200_000_000L;
+    
+    private static OperationScheduler instance;
+    
+    public enum Type {
+        COPY,
+        MOVE,
+        DELETE,
+        RENAME
+    }
+    
+    public interface Listener {
+        // Both callbacks run on a lane thread
+        void onProgress(Progress progress);
+        void onJobComplete(Job job, OperationResult result);
+    }
+    
+    public static class Progress {
+        private final int activeJobs;
+        private final int totalItems;
+        private final int completedItems;
+        private final int failedItems;
+        private final long bytesCopied;
+        
+        Progress(int activeJobs, int totalItems, int completedItems, int failedItems, long bytesCopied) {
+            this.activeJobs = activeJobs;
+            this.totalItems = totalItems;
+            this.completedItems = completedItems;
+            this.failedItems = failedItems;
+            this.bytesCopied = bytesCopied;
+        }
+        
+        public int getActiveJobs() { return activeJobs; }
+        public int getTotalItems() { return totalItems; }
+        public int getCompletedItems() { return completedItems; }
+        public int getFailedItems() { return failedItems; }
+        public long getBytesCopied() { return bytesCopied; }
+        public boolean isIdle() { return activeJobs == 0; }
+    }
+    
+    public static class Job {
+        private final int id;
+        private final Type type;
+        private final List<File> sources;
+        private final File target;
+        private final String newName;
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger remaining;
+        private final OperationResult result = new OperationResult();
+        private final Set<Runnable> cancellers = ConcurrentHashMap.newKeySet();
+        private volatile boolean cancelled;
+        
+        Job(int id, Type type, List<File> sources, File target, String newName) {
+            this.id = id;
+            this.type = type;
+            this.sources = sources;
+            this.target = target;
+            this.newName = newName;
+            this.remaining = new AtomicInteger(sources.size());
+        }
+        
+        public int getId() { return id; }
+        public Type getType() { return type; }
+        public List<File> getSources() { return sources; }
+        public File getTarget() { return target; }
+        public String getNewName() { return newName; }
+        public boolean isCancelled() { return cancelled; }
+        
+        // Queued items are skipped, items in flight stop after their current chunk
+        public void cancel() {
+            cancelled = true;
+            for (Runnable canceller : cancellers) {
+                canceller.run();
+            }
+        }
+        
+        synchronized void recordSuccess(long bytes) {
+            result.setSucceeded(result.getSucceeded() + 1);
+            result.setBytes(result.getBytes() + bytes);
+        }
+        
+        synchronized void recordFailure(String path, String reason) {
+            result.addFailure(path, reason);
+        }
+        
+        synchronized void recordFailures(List<OperationResult.Failure> failures) {
+            result.addFailures(failures);
+        }
+        
+        synchronized OperationResult finish() {
+            result.setElapsedNanos(System.nanoTime() - startNanos);
+            result.setCancelled(cancelled);
+            return result;
+        }
+        
+        @Override
+        public String toString() {
+            return "Job{" + id + ", " + type + ", items=" + sources.size() + "}";
+        }
+    }
+    
+    private final Map<Object, ExecutorService> lanes = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final List<Job> activeJobs = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextJobId = new AtomicInteger(1);
+    private final AtomicInteger totalItems = new AtomicInteger();
+    private final AtomicInteger completedItems = new AtomicInteger();
+    private final AtomicInteger failedItems = new AtomicInteger();
+    private final AtomicLong bytesCopied = new AtomicLong();
+    private final AtomicLong lastProgressNanos = new AtomicLong();
+    // Target names handed to items in flight, guarded by this. Lanes run
+    // items in parallel, so an exists() check alone could give two items
+    // the same name before either one has created it.
+    private final Set<File> reservedTargets = new HashSet<>();
+    
+    public static synchronized OperationScheduler getInstance() {
+        if (instance == null) {
+            instance = new OperationScheduler();
+        }
+        return instance;
+    }
+    
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+    
+    public List<Job> getActiveJobs() {
+        return Collections.unmodifiableList(activeJobs);
+    }
+    
+    public Job copy(List<File> sources, File targetDirectory) {
+        return submit(Type.COPY, sources, targetDirectory, null);
+    }
+    
+    public Job move(List<File> sources, File targetDirectory) {
+        return submit(Type.MOVE, sources, targetDirectory, null);
+    }
+    
+    public Job delete(List<File> sources) {
+        return submit(Type.DELETE, sources, null, null);
+    }
+    
+    public Job rename(File source, String newName) {
+        return submit(Type.RENAME, Collections.singletonList(source), null, newName);
+    }
+    
+    private Job submit(Type type, List<File> sources, File target, String newName) {
+        Job job = new Job(nextJobId.getAndIncrement(), type, new ArrayList<>(sources), target, newName);
+        synchronized (this) {
+            activeJobs.add(job);
+            totalItems.addAndGet(sources.size());
+        }
+        Log.d(TAG, "Queued " + job);
+        
+        if (job.sources.isEmpty()) {
+            completeJob(job);
+            return job;
+        }
+        for (File source : job.sources) {
+            // Copies and moves are bound by the volume they write to
+            File laneFile = target != null ? target : source;
+            laneFor(laneFile).execute(() -> runItem(job, source));
+        }
+        return job;
+    }
+    
+    private void runItem(Job job, File source) {
+        boolean success;
+        if (job.isCancelled()) {
+            job.recordFailure(source.getPath(), "Cancelled");
+            success = false;
+        } else {
+            try {
+                success = execute(job, source);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error running " + job.type + " on " + source, e);
+                job.recordFailure(source.getPath(), String.valueOf(e.getMessage()));
+                success = false;
+            }
+        }
+        
+        completedItems.incrementAndGet();
+        if (!success) failedItems.incrementAndGet();
+        reportProgress(false);
+        
+        if (job.remaining.decrementAndGet() == 0) {
+            completeJob(job);
+        }
+    }
+    
+    private boolean execute(Job job, File source) {
+        switch (job.type) {
+            case COPY: {
+                File target = reserveUniqueTarget(job.target, source.getName());
+                try {
+                    return copy(job, source, target);
+                } finally {
+                    releaseTarget(target);
+                }
+            }
+            
+            case MOVE: {
+                File target = reserveUniqueTarget(job.target, source.getName());
+                try {
+                    return move(job, source, target);
+                } finally {
+                    releaseTarget(target);
+                }
+            }
+            
+            case DELETE: {
+                CountDownLatch done = new CountDownLatch(1);
+                OperationResult[] holder = new OperationResult[1];
+                DeleteEngine.Task task = DeleteEngine.delete(Collections.singletonList(source),
+                        new DeleteEngine.Listener() {
+                            @Override
+                            public void onProgress(long filesDeleted, long directoriesDeleted, int failed) {
+                            }
+                            
+                            @Override
+                            public void onComplete(OperationResult result) {
+                                holder[0] = result;
+                                done.countDown();
+                            }
+                        });
+                Runnable canceller = task::cancel;
+                job.cancellers.add(canceller);
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    task.cancel();
+                    Thread.currentThread().interrupt();
+                    job.recordFailure(source.getPath(), "Interrupted");
+                    return false;
+                } finally {
+                    job.cancellers.remove(canceller);
+                }
+                if (!holder[0].isSuccess()) {
+                    job.recordFailures(holder[0].getFailures());
+                    if (holder[0].isCancelled()) {
+                        job.recordFailure(source.getPath(), "Cancelled");
+                    }
+                    return false;
+                }
+                job.recordSuccess(holder[0].getBytes());
+                return true;
+            }
+            
+            case RENAME: {
+                File target = new File(source.getParentFile(), job.newName);
+                if (!reserveTarget(target)) {
+                    job.recordFailure(source.getPath(), "A file named " + job.newName + " already exists");
+                    return false;
+                }
+                try {
+                    // Unlike renameTo, this refuses to replace an entry
+                    // another app created after the check
+                    Files.move(source.toPath(), target.toPath());
+                } catch (FileAlreadyExistsException e) {
+                    job.recordFailure(source.getPath(), "A file named " + job.newName + " already exists");
+                    return false;
+                } catch (IOException | SecurityException e) {
+                    Log.w(TAG, "Rename failed for " + source, e);
+                    job.recordFailure(source.getPath(), "Rename failed");
+                    return false;
+                } finally {
+                    releaseTarget(target);
+                }
+                job.recordSuccess(0);
+                return true;
+            }
+            
+            default:
+                return false;
+        }
+    }
+    
+    private boolean copy(Job job, File source, File target) {
+        // The walk would find the folders it creates and never finish
+        if (target.toPath().toAbsolutePath().normalize()
+                .startsWith(source.toPath().toAbsolutePath().normalize())) {
+            job.recordFailure(source.getPath(), "Cannot copy a folder into itself");
+            return false;
+        }
+        
+        long[] lastBytes = {0};
+        CopyEngine engine = new CopyEngine(new CopyEngine.ProgressListener() {
+            @Override
+            public void onFileStarted(File file, long startOffset) {
+                lastBytes[0] = startOffset;
+            }
+            
+            @Override
+            public void onProgress(long copied, long total, long bytesPerSecond, long etaMillis) {
+                bytesCopied.addAndGet(copied - lastBytes[0]);
+                lastBytes[0] = copied;
+                reportProgress(false);
+            }
+        });
+        Runnable canceller = engine::cancel;
+        job.cancellers.add(canceller);
+        try {
+            CopyEngine.Result result = engine.copyTree(source, target);
+            if (!result.isSuccess()) {
+                // The target was free and reserved for this item, so
+                // everything under it was written here
+                FileUtils.deleteFile(target);
+                job.recordFailure(source.getPath(), result.isCancelled() ? "Cancelled" : result.getError());
+                return false;
+            }
+            job.recordSuccess(result.getBytesCopied());
+            return true;
+        } finally {
+            job.cancellers.remove(canceller);
+        }
+    }
+    
+    private boolean move(Job job, File source, File target) {
+        MoveEngine engine = new MoveEngine(null);
+        Runnable canceller = engine::cancel;
+        job.cancellers.add(canceller);
+        try {
+            MoveEngine.Result result = engine.move(source, target);
+            if (!result.isSuccess()) {
+                job.recordFailure(source.getPath(), result.getError());
+                return false;
+            }
+            bytesCopied.addAndGet(result.getBytesCopied());
+            job.recordSuccess(result.getBytesCopied());
+            return true;
+        } finally {
+            job.cancellers.remove(canceller);
+        }
+    }
+    
+    private void completeJob(Job job) {
+        OperationResult result = job.finish();
+        activeJobs.remove(job);
+        Log.d(TAG, job + ": " + result);
+        
+        for (Listener listener : listeners) {
+            listener.onJobComplete(job, result);
+        }
+        reportProgress(true);
+        
+        // Aggregate counters describe the current burst of work only
+        synchronized (this) {
+            if (activeJobs.isEmpty()) {
+                totalItems.set(0);
+                completedItems.set(0);
+                failedItems.set(0);
+                bytesCopied.set(0);
+            }
+        }
+    }
+    
+    private void reportProgress(boolean force) {
+        long now = System.nanoTime();
+        long last = lastProgressNanos.get();
+        if (!force && (now - last < PROGRESS_INTERVAL_NANOS || !lastProgressNanos.compareAndSet(last, now))) {
+            return;
+        }
+        Progress progress = new Progress(activeJobs.size(), totalItems.get(), completedItems.get(),
+                failedItems.get(), bytesCopied.get());
+        for (Listener listener : listeners) {
+            listener.onProgress(progress);
+        }
+    }
+    
+    // "name (1).ext" style names so a copy never overwrites an existing
+    // entry; the name stays reserved until releaseTarget
+    private synchronized File reserveUniqueTarget(File directory, String name) {
+        File candidate = new File(directory, name);
+        if (reserveTarget(candidate)) return candidate;
+        
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; ; i++) {
+            candidate = new File(directory, base + " (" + i + ")" + extension);
+            if (reserveTarget(candidate)) return candidate;
+        }
+    }
+    
+    private synchronized boolean reserveTarget(File target) {
+        File key = target.getAbsoluteFile();
+        if (reservedTargets.contains(key) || target.exists()) return false;
+        reservedTargets.add(key);
+        return true;
+    }
+    
+    private synchronized void releaseTarget(File target) {
+        reservedTargets.remove(target.getAbsoluteFile());
+    }
+    
+    private synchronized ExecutorService laneFor(File file) {
+        Object volume = volumeKey(file);
+        ExecutorService lane = lanes.get(volume);
+        if (lane == null) {
+            int width = FileUtils.isSdCardPath(file.getAbsolutePath()) ? SD_CARD_LANE_WIDTH : INTERNAL_LANE_WIDTH;
+            lane = Executors.newFixedThreadPool(width);
+            lanes.put(volume, lane);
+            Log.d(TAG, "New lane for volume " + volume + " with " + width + " worker(s)");
+        }
+        return lane;
+    }
+    
+    // Device id of the nearest existing ancestor, so targets that are not
+    // created yet still map to the right volume
+    private static Object volumeKey(File file) {
+        File existing = file;
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        if (existing != null) {
+            try {
+                return Files.getAttribute(existing.toPath(), "unix:dev");
+            } catch (IOException | UnsupportedOperationException | IllegalArgumentException | SecurityException ignored) {
+            }
+        }
+        return "default";
+    }
+}
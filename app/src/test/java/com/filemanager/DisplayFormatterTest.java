@@ -0,0 +1,128 @@
+package com.filemanager;
+
+import static org.junit.Assert.assertEquals;
+
+import com.filemanager.models.FileItem;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// DisplayFormatter must print exactly what the DecimalFormat and
+// SimpleDateFormat code it replaced printed, in every locale
+public class DisplayFormatterTest {
+    
+    private static final Locale[] LOCALES = {
+            Locale.US,
+            Locale.GERMANY,
+            Locale.FRANCE,
+            Locale.forLanguageTag("de-CH"),
+            Locale.forLanguageTag("hi-IN")
+    };
+    private static final int VALUES_PER_LOCALE = 60_000;
+    private static final String[] UNITS = {"B", "KB", "MB", "GB", "TB"};
+    
+    private Locale savedLocale;
+    private TimeZone savedTimeZone;
+    
+    @Before
+    public void saveDefaults() {
+        savedLocale = Locale.getDefault();
+        savedTimeZone = TimeZone.getDefault();
+        // Has DST, so both offsets are covered
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+    }
+    
+    @After
+    public void restoreDefaults() {
+        Locale.setDefault(savedLocale);
+        TimeZone.setDefault(savedTimeZone);
+        DisplayFormatter.refreshLocale();
+    }
+    
+    @Test
+    public void formatSizeMatchesDecimalFormat() {
+        for (Locale locale : LOCALES) {
+            Locale.setDefault(locale);
+            DisplayFormatter.refreshLocale();
+            DecimalFormat reference = new DecimalFormat("#,##0.#", DecimalFormatSymbols.getInstance(locale));
+            
+            Random random = new Random(locale.hashCode());
+            for (int i = 0; i < VALUES_PER_LOCALE; i++) {
+                long size = sizeSample(random, i);
+                assertEquals(locale + " " + size, oldFormatSize(reference, size),
+                        DisplayFormatter.formatSize(size));
+            }
+        }
+    }
+    
+    @Test
+    public void formatDateMatchesSimpleDateFormat() {
+        char[] buffer = new char[32];
+        for (Locale locale : LOCALES) {
+            Locale.setDefault(locale);
+            DisplayFormatter.refreshLocale();
+            SimpleDateFormat reference = new SimpleDateFormat("yyyy-MM-dd HH:mm", locale);
+            
+            Random random = new Random(locale.hashCode());
+            for (int i = 0; i < VALUES_PER_LOCALE; i++) {
+                // 1901 to 2100, past the Julian calendar SimpleDateFormat switches to
+                long millis = -2_177_452_800_000L + (long) (random.nextDouble() * 6_311_347_200_000L);
+                int length = DisplayFormatter.formatDate(millis, buffer, 0);
+                assertEquals(locale + " " + millis, reference.format(new Date(millis)),
+                        new String(buffer, 0, length));
+            }
+        }
+    }
+    
+    @Test
+    public void localeChangeMakesPreparedRowsStale() {
+        Locale.setDefault(Locale.US);
+        FileItem item = new FileItem();
+        item.setLocation("/sdcard", "video.mp4");
+        item.setSize(1536 * 1024);
+        DisplayFormatter.prepare(Collections.singletonList(item));
+        assertEquals("1.5 MB", item.getRowDisplay().getSizeText());
+        
+        Locale.setDefault(Locale.GERMANY);
+        DisplayFormatter.prepare(Collections.singletonList(item));
+        assertEquals("1,5 MB", item.getRowDisplay().getSizeText());
+    }
+    
+    // Mostly random sizes of every magnitude, with unit boundaries and
+    // rounding ties mixed in. All stay below 2^53, where the old code's
+    // double division was still exact.
+    private static long sizeSample(Random random, int i) {
+        switch (i % 4) {
+            case 0: {
+                int group = random.nextInt(UNITS.length);
+                return (1L << (10 * group)) + random.nextInt(3) - 1;
+            }
+            case 1: {
+                // x.x5 of a unit up to 1024.05, where half-even rounding decides
+                int group = 1 + random.nextInt(UNITS.length - 1);
+                long hundredths = random.nextInt(10_240) * 10L + 5;
+                return hundredths * (1L << (10 * group)) / 100;
+            }
+            default:
+                return random.nextLong() >>> (14 + random.nextInt(50));
+        }
+    }
+    
+    // FileUtils.formatFileSize before DisplayFormatter
+    private static String oldFormatSize(DecimalFormat format, long size) {
+        if (size <= 0) return "0 B";
+        int digitGroups = (int) (Math.log10(size) / Math.log10(1024));
+        if (digitGroups >= UNITS.length) {
+            digitGroups = UNITS.length - 1;
+        }
+        return format.format(size / Math.pow(1024, digitGroups)) + " " + UNITS[digitGroups];
+    }
+}